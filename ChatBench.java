@@ -0,0 +1,838 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Records latency samples (in nanoseconds) and prints percentiles
+class LatencyRecorder {
+    private long[] samples = new long[1024];
+    private int count = 0;
+
+    synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    // In microseconds, or -1 without samples
+    synchronized long percentile(double q) {
+        if (count == 0) {
+            return -1;
+        }
+
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[(int) (count * q)] / 1000;
+    }
+
+    synchronized String summary() {
+        if (count == 0) {
+            return "no samples";
+        }
+
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return String.format("n=%d p50=%dus p99=%dus p99.9=%dus max=%dus", count,
+                sorted[(int) (count * 0.50)] / 1000, sorted[(int) (count * 0.99)] / 1000,
+                sorted[(int) (count * 0.999)] / 1000, sorted[count - 1] / 1000);
+    }
+}
+
+// A chat client that repeatedly sends a timestamp to its room and records how
+// long its own copy of the broadcast takes to come back
+class Probe extends Thread {
+    private final String host;
+    private final int port;
+    private final String name;
+    private final String room;
+    private final long intervalMs;
+    volatile LatencyRecorder recorder;
+    volatile boolean running = true;
+
+    Probe(String host, int port, String name, String room, long intervalMs, LatencyRecorder recorder) {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.room = room;
+        this.intervalMs = intervalMs;
+        this.recorder = recorder;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            out.write("/nick " + name + "\n/join " + room + "\n");
+            out.flush();
+
+            String echo = "MESSAGE " + name + " t ";
+            while (running) {
+                out.write("t " + System.nanoTime() + "\n");
+                out.flush();
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(echo)) {
+                        recorder.record(System.nanoTime() - Long.parseLong(line.substring(echo.length())));
+                        break;
+                    }
+                }
+                if (line == null) {
+                    return;
+                }
+
+                Thread.sleep(intervalMs);
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println(name + ": " + e);
+        }
+    }
+}
+
+// One connection of a baseline run: keeps `window` "t <nanos>" lines in
+// flight for `seconds`, recording the round trip of each, or with window 0
+// writes "/pong" lines as fast as the server takes them. On a ChatServer
+// each connection chats alone in its own room, so every line comes back once,
+// like on an echo Server. The address is a TCP one or a Unix domain socket.
+class Pipeline extends Thread {
+    static final byte[] PONGS = new byte[64 * 1024];
+
+    static {
+        byte[] pong = "/pong\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i + pong.length <= PONGS.length; i += pong.length) {
+            System.arraycopy(pong, 0, PONGS, i, pong.length);
+        }
+    }
+
+    private final SocketAddress address;
+    private final int id;
+    private final boolean chat;
+    private final int window;
+    private final long seconds;
+    private final LatencyRecorder recorder;
+    long completed;
+    long bytesWritten;
+
+    Pipeline(SocketAddress address, int id, boolean chat, int window, long seconds, LatencyRecorder recorder) {
+        this.address = address;
+        this.id = id;
+        this.chat = chat;
+        this.window = window;
+        this.seconds = seconds;
+        this.recorder = recorder;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        // An ERROR instead of an echo must not hang the run: run() stops waiting
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            if (address instanceof InetSocketAddress) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                    StandardCharsets.UTF_8));
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+            if (window == 0) {
+                while (System.nanoTime() < deadline) {
+                    out.write(PONGS);
+                    bytesWritten += PONGS.length;
+                }
+                out.flush();
+                return;
+            }
+
+            if (chat) {
+                String name = "base" + window + "-" + id;
+                out.write(("/nick " + name + "\n/join " + name + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < window; i++) {
+                out.write(("t " + System.nanoTime() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                long sent = stamp(line);
+                if (sent < 0) {
+                    continue; // OK replies and the like
+                }
+
+                long now = System.nanoTime();
+                recorder.record(now - sent);
+                completed++;
+                if (now >= deadline) {
+                    return;
+                }
+                out.write(("t " + now + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("connection " + id + ": " + e);
+        }
+    }
+
+    // The send time in "t <nanos>" or "MESSAGE <nick> t <nanos>", or -1
+    static long stamp(String line) {
+        int space = line.lastIndexOf(' ');
+        if (space < 1 || line.charAt(space - 1) != 't' || (space > 1 && line.charAt(space - 2) != ' ')) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(line.substring(space + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
+
+// The members of one room for a fanout run: a single selector reads all of
+// them, counting the chat lines that arrive and recording the latency stamped
+// in each. The members are connections of their own, or sessions spread over
+// a few /gateway connections, where "TO <id>,<id>,... MESSAGE ..." counts once
+// per id.
+class FanoutRoom {
+    private final Selector selector = Selector.open();
+    private final List<SocketChannel> members = new ArrayList<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    long delivered;
+    long lastDelivery;
+    long bytesRead;
+
+    FanoutRoom(String host, int port, String room, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            send(open(host, port), "/nick fan" + i + "\n/join " + room + "\n");
+        }
+    }
+
+    FanoutRoom(String host, int port, String room, int count, int gateways, String secret) throws IOException {
+        StringBuilder[] setup = new StringBuilder[gateways];
+        for (int g = 0; g < gateways; g++) {
+            setup[g] = new StringBuilder("/gateway ").append(secret).append('\n');
+        }
+        for (int i = 0; i < count; i++) {
+            setup[i % gateways].append(i).append(" /nick fan").append(i).append('\n')
+                    .append(i).append(" /join ").append(room).append('\n');
+        }
+        for (StringBuilder lines : setup) {
+            send(open(host, port), lines.toString());
+        }
+    }
+
+    private SocketChannel open(String host, int port) throws IOException {
+        SocketChannel sc = SocketChannel.open(new InetSocketAddress(host, port));
+        sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        sc.configureBlocking(false);
+        sc.register(selector, SelectionKey.OP_READ, new StringBuilder());
+        members.add(sc);
+        return sc;
+    }
+
+    void sendAll(String lines) throws IOException {
+        for (SocketChannel sc : members) {
+            send(sc, lines);
+        }
+    }
+
+    static void send(SocketChannel sc, String lines) throws IOException {
+        ByteBuffer out = StandardCharsets.UTF_8.encode(lines);
+        while (out.hasRemaining()) {
+            sc.write(out);
+        }
+    }
+
+    // Reads until done is set and nothing has arrived for quietMs
+    void drain(AtomicBoolean done, long quietMs, LatencyRecorder recorder) throws IOException {
+        long quietSince = System.nanoTime();
+        while (!done.get() || System.nanoTime() - quietSince < quietMs * 1_000_000) {
+            if (selector.select(50) == 0) {
+                continue;
+            }
+            quietSince = System.nanoTime();
+
+            for (SelectionKey key : selector.selectedKeys()) {
+                StringBuilder line = (StringBuilder) key.attachment();
+                buffer.clear();
+                int n = ((SocketChannel) key.channel()).read(buffer);
+                if (n < 0) {
+                    throw new EOFException("member closed by server");
+                }
+                bytesRead += n;
+                buffer.flip();
+
+                while (buffer.hasRemaining()) {
+                    char c = (char) buffer.get();
+                    if (c != '\n') {
+                        line.append(c);
+                        continue;
+                    }
+                    int recipients = 1;
+                    if (line.length() > 3 && line.charAt(0) == 'T' && line.charAt(1) == 'O' && line.charAt(2) == ' ') {
+                        int end = line.indexOf(" ", 3);
+                        for (int i = 3; i < end; i++) {
+                            recipients += line.charAt(i) == ',' ? 1 : 0;
+                        }
+                        line.delete(0, end + 1);
+                    }
+                    if (line.length() > 8 && line.charAt(0) == 'M' && line.indexOf("MESSAGE ") == 0) {
+                        long sent = Pipeline.stamp(line.toString());
+                        lastDelivery = System.nanoTime();
+                        delivered += recipients;
+                        if (sent > 0 && recorder != null) {
+                            for (int i = 0; i < recipients; i++) {
+                                recorder.record(lastDelivery - sent);
+                            }
+                        }
+                    }
+                    line.setLength(0);
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    void close() throws IOException {
+        for (SocketChannel sc : members) {
+            sc.close();
+        }
+        selector.close();
+    }
+}
+
+// Load generator for ChatServer.
+//
+//   java ChatBench storm <host> <port> [probes] [connections]
+//   java ChatBench baseline <host> <chatPort> <echoPort> <sinkPort> [connections] [seconds]
+//   java ChatBench fanout <host> <port> [members] [messages]
+//   java ChatBench cluster <host> <singlePort> <groupPort> [connections] [seconds]
+//   java ChatBench unix <host> <port> <socketPath> [connections] [seconds]
+//   java ChatBench gateway <host> <port> <secret> [users] [gateways] [messages]
+//
+// storm: probes chat in one room and measure the round trip of their own
+// messages, first on a quiet server and then while `connections` new sockets
+// connect as fast as possible and pick a nickname. All of them come from one
+// address, so start the server with chat.maxConnectionsPerAddress above
+// `connections`; only the sockets whose /nick got OK count as admitted.
+//
+// baseline: runs the same three loads against a ChatServer and against
+// `java Server <port> echo` / `java Server <port> sink`, and prints them side
+// by side: one line in flight per connection (round trip), 64 in flight
+// (throughput), and writing /pong lines flat out (ingest; ChatServer parses
+// and runs each one but sends nothing back). Start the ChatServer without
+// rate limits and connection logging for this:
+//   -Dchat.rate.linesPerSec=0 -Dchat.rate.bytesPerSec=0
+//   -Dchat.rate.roomBroadcastsPerSec=0 -Dchat.logConnections=false
+//
+// fanout: one sender writes `messages` lines as fast as it can to a room of
+// `members` readers, three times: with no filters, with every member ignoring
+// eight idle connections (so each delivery searches an ignore list and never
+// matches), and with each line sent four times in a row (the server's
+// duplicate filter should pass one of the four). After an unreported warm-up
+// run it prints deliveries per second and the send-to-receive latency of
+// each. Run it once more against a server started with
+// -Dchat.dedup.windowMs=0 for the cost of the duplicate filter itself; same
+// server settings as for baseline otherwise.
+//
+// cluster: compares one ChatServer on singlePort with a group of them sharing
+// groupPort (-Dchat.reusePort=true -Dchat.cluster.dir=<dir> on each): how the
+// kernel spread `connections` accepts over the processes, the 64 in flight
+// load of baseline, and a fanout run with all connections in one room, where
+// each line reaches the members on other processes over a PeerLinks link.
+// Rate limits off, as for baseline.
+//
+// unix: the 1 and 64 in flight loads of baseline against one ChatServer, over
+// loopback TCP and over its -Dchat.unixSocket=<socketPath>, with the latency
+// and the CPU time per line of the server (process.cpuMillis in /stats) and of
+// this process. Rate limits off, as for baseline.
+//
+// gateway: a fanout room of `users` members, first each on its own
+// connection, then as sessions spread over `gateways` connections of a server
+// started with -Dchat.gateway.secret=<secret>: deliveries per second, server
+// CPU time per delivery (process.cpuMillis in /stats) and bytes read per
+// delivery. Rate limits off, as for baseline, and chat.maxConnectionsPerAddress
+// above `users`.
+public class ChatBench {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: java ChatBench storm <host> <port> [probes] [connections]");
+            System.err.println("       java ChatBench baseline <host> <chatPort> <echoPort> <sinkPort> [connections] [seconds]");
+            System.err.println("       java ChatBench fanout <host> <port> [members] [messages]");
+            System.err.println("       java ChatBench cluster <host> <singlePort> <groupPort> [connections] [seconds]");
+            System.err.println("       java ChatBench unix <host> <port> <socketPath> [connections] [seconds]");
+            System.err.println("       java ChatBench gateway <host> <port> <secret> [users] [gateways] [messages]");
+            return;
+        }
+
+        String host = args[1];
+        int port = Integer.parseInt(args[2]);
+
+        switch (args[0]) {
+            case "storm":
+                storm(host, port, args.length > 3 ? Integer.parseInt(args[3]) : 20,
+                        args.length > 4 ? Integer.parseInt(args[4]) : 10_000);
+                break;
+            case "baseline":
+                if (args.length < 5) {
+                    System.err.println("usage: java ChatBench baseline <host> <chatPort> <echoPort> <sinkPort> [connections] [seconds]");
+                    return;
+                }
+                baseline(host, port, Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                        args.length > 5 ? Integer.parseInt(args[5]) : 50,
+                        args.length > 6 ? Integer.parseInt(args[6]) : 10);
+                break;
+            case "fanout":
+                fanout(host, port, args.length > 3 ? Integer.parseInt(args[3]) : 500,
+                        args.length > 4 ? Integer.parseInt(args[4]) : 2_000);
+                break;
+            case "cluster":
+                if (args.length < 4) {
+                    System.err.println("usage: java ChatBench cluster <host> <singlePort> <groupPort> [connections] [seconds]");
+                    return;
+                }
+                cluster(host, port, Integer.parseInt(args[3]), args.length > 4 ? Integer.parseInt(args[4]) : 200,
+                        args.length > 5 ? Integer.parseInt(args[5]) : 10);
+                break;
+            case "unix":
+                if (args.length < 4) {
+                    System.err.println("usage: java ChatBench unix <host> <port> <socketPath> [connections] [seconds]");
+                    return;
+                }
+                unix(host, port, args[3], args.length > 4 ? Integer.parseInt(args[4]) : 50,
+                        args.length > 5 ? Integer.parseInt(args[5]) : 10);
+                break;
+            case "gateway":
+                if (args.length < 4) {
+                    System.err.println("usage: java ChatBench gateway <host> <port> <secret> [users] [gateways] [messages]");
+                    return;
+                }
+                gateway(host, port, args[3], args.length > 4 ? Integer.parseInt(args[4]) : 2_000,
+                        args.length > 5 ? Integer.parseInt(args[5]) : 4, args.length > 6 ? Integer.parseInt(args[6]) : 500);
+                break;
+            default:
+                System.err.println("unknown benchmark " + args[0]);
+        }
+    }
+
+    static void storm(String host, int port, int probes, int connections) throws Exception {
+        LatencyRecorder quiet = new LatencyRecorder();
+        LatencyRecorder storm = new LatencyRecorder();
+
+        List<Probe> running = new ArrayList<>();
+        for (int i = 0; i < probes; i++) {
+            Probe probe = new Probe(host, port, "probe" + i, "bench", 20, quiet);
+            probe.start();
+            running.add(probe);
+        }
+        Thread.sleep(3000);
+
+        // Switch the probes to the storm recorder and open the new connections
+        for (Probe probe : running) {
+            probe.recorder = storm;
+        }
+
+        long start = System.nanoTime();
+        List<SocketChannel> opened = openConnections(host, port, connections, 4);
+        long elapsed = System.nanoTime() - start;
+
+        for (Probe probe : running) {
+            probe.running = false;
+        }
+        int admitted = countAdmitted(opened);
+        for (SocketChannel sc : opened) {
+            sc.close();
+        }
+
+        System.out.println("existing clients, quiet:  " + quiet.summary());
+        System.out.println("existing clients, storm:  " + storm.summary());
+        System.out.printf("storm: %d connections in %d ms (%.0f/s), %d admitted%n", opened.size(),
+                elapsed / 1_000_000, opened.size() * 1e9 / elapsed, admitted);
+        if (admitted < opened.size()) {
+            System.out.println("storm: " + (opened.size() - admitted)
+                    + " rejected or unanswered; is chat.maxConnectionsPerAddress above the connection count?");
+        }
+    }
+
+    // How many of the sockets got OK for their /nick; a rejected one gets ERROR and is closed
+    static int countAdmitted(List<SocketChannel> opened) throws IOException {
+        Selector selector = Selector.open();
+        for (SocketChannel sc : opened) {
+            sc.configureBlocking(false);
+            sc.register(selector, SelectionKey.OP_READ, new StringBuilder());
+        }
+
+        int admitted = 0;
+        int answered = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (answered < opened.size() && System.nanoTime() < deadline) {
+            selector.select(100);
+            for (SelectionKey key : selector.selectedKeys()) {
+                StringBuilder reply = (StringBuilder) key.attachment();
+                buffer.clear();
+                int n;
+                try {
+                    n = ((SocketChannel) key.channel()).read(buffer);
+                } catch (IOException e) {
+                    n = -1;
+                }
+                buffer.flip();
+                reply.append(StandardCharsets.UTF_8.decode(buffer));
+                if (n < 0 || reply.indexOf("\n") >= 0) {
+                    answered++;
+                    if (reply.toString().startsWith("OK")) {
+                        admitted++;
+                    }
+                    key.cancel();
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        selector.close();
+        return admitted;
+    }
+
+    static void baseline(String host, int chatPort, int echoPort, int sinkPort, int connections, int seconds)
+            throws Exception {
+        String[][] rows = new String[3][];
+        SocketAddress chatServer = new InetSocketAddress(host, chatPort);
+
+        for (int window : new int[] { 1, 64 }) {
+            LatencyRecorder chatLatency = new LatencyRecorder();
+            LatencyRecorder rawLatency = new LatencyRecorder();
+            double chat = run(chatServer, true, connections, window, seconds, chatLatency)[0];
+            double raw = run(new InetSocketAddress(host, echoPort), false, connections, window, seconds, rawLatency)[0];
+            rows[window == 1 ? 0 : 1] = new String[] { window + " in flight, lines/s",
+                    String.format("%.0f", chat), String.format("%.0f", raw), String.format("%.2f", chat / raw) };
+
+            System.out.printf("%d in flight, ChatServer: %s%n", window, chatLatency.summary());
+            System.out.printf("%d in flight, Server:     %s%n", window, rawLatency.summary());
+        }
+
+        double chat = run(chatServer, true, connections, 0, seconds, null)[1];
+        double raw = run(new InetSocketAddress(host, sinkPort), false, connections, 0, seconds, null)[1];
+        rows[2] = new String[] { "ingest, MB/s", String.format("%.1f", chat / 1e6), String.format("%.1f", raw / 1e6),
+                String.format("%.2f", chat / raw) };
+
+        System.out.printf("%n%-26s %12s %12s %10s%n", connections + " connections, " + seconds + "s", "ChatServer",
+                "Server", "chat/raw");
+        for (String[] row : rows) {
+            System.out.printf("%-26s %12s %12s %10s%n", (Object[]) row);
+        }
+    }
+
+    static void fanout(String host, int port, int members, int messages) throws Exception {
+        List<Socket> idle = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Socket socket = new Socket(host, port);
+            socket.getOutputStream().write(("/nick fanidle" + i + "\n").getBytes(StandardCharsets.UTF_8));
+            idle.add(socket);
+        }
+
+        Socket sender = openSender(host, port);
+        OutputStream out = new BufferedOutputStream(sender.getOutputStream());
+
+        FanoutRoom room = new FanoutRoom(host, port, "fanout", members);
+        room.drain(new AtomicBoolean(true), 1000, null);
+
+        // Warm up the server first, so the first run is not the one paying for the JIT
+        fanoutRun(null, room, out, messages, 1);
+        System.out.printf("%d members, %d lines per run%n", members, messages);
+        System.out.printf("%-22s %10s %14s %10s %10s%n", "", "deliveries", "deliveries/s", "p50", "p99");
+        fanoutRun("no filters", room, out, messages, 1);
+
+        StringBuilder ignores = new StringBuilder();
+        for (int i = 0; i < idle.size(); i++) {
+            ignores.append("/ignore fanidle").append(i).append('\n');
+        }
+        room.sendAll(ignores.toString());
+        room.drain(new AtomicBoolean(true), 1000, null);
+        fanoutRun("8 ignored ids each", room, out, messages, 1);
+
+        fanoutRun("each line 4 times", room, out, messages, 4);
+
+        room.close();
+        sender.close();
+        for (Socket socket : idle) {
+            socket.close();
+        }
+    }
+
+    // Joins the fanout room as its sender; what comes back is thrown away
+    static Socket openSender(String host, int port) throws IOException {
+        Socket sender = new Socket(host, port);
+        sender.setTcpNoDelay(true);
+        sender.getOutputStream().write("/nick fansend\n/join fanout\n".getBytes(StandardCharsets.UTF_8));
+        Thread discard = new Thread(() -> {
+            try {
+                sender.getInputStream().transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                // closed at the end of the run
+            }
+        });
+        discard.setDaemon(true);
+        discard.start();
+        return sender;
+    }
+
+    // One fanout run: deliveries per second, printed as a row unless name is null
+    static double fanoutRun(String name, FanoutRoom room, OutputStream out, int messages, int repeats)
+            throws Exception {
+        LatencyRecorder recorder = new LatencyRecorder();
+        AtomicBoolean done = new AtomicBoolean();
+        long before = room.delivered;
+        long start = System.nanoTime();
+
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < messages; i++) {
+                    byte[] line = ("t " + System.nanoTime() + "\n").getBytes(StandardCharsets.UTF_8);
+                    for (int r = 0; r < repeats; r++) {
+                        out.write(line);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                System.err.println("sender: " + e);
+            }
+            done.set(true);
+        });
+        writer.start();
+        room.drain(done, 1000, recorder);
+        writer.join();
+
+        long deliveries = room.delivered - before;
+        double elapsed = (room.lastDelivery - start) / 1e9;
+        if (name != null) {
+            System.out.printf("%-22s %10d %14.0f %8dus %8dus%n", name, deliveries, deliveries / elapsed,
+                    recorder.percentile(0.50), recorder.percentile(0.99));
+        }
+        return deliveries / elapsed;
+    }
+
+    static void cluster(String host, int singlePort, int groupPort, int connections, int seconds) throws Exception {
+        Map<Long, Integer> single = acceptSpread(host, singlePort, connections);
+        Map<Long, Integer> group = acceptSpread(host, groupPort, connections);
+        System.out.println("connections per pid, single: " + single + ", group: " + group);
+
+        String[][] rows = new String[4][];
+        rows[0] = new String[] { "processes", "" + single.size(), "" + group.size(), "" };
+        rows[1] = new String[] { "busiest process, % of accepts",
+                String.format("%.0f", 100.0 * Collections.max(single.values()) / connections),
+                String.format("%.0f", 100.0 * Collections.max(group.values()) / connections), "" };
+
+        SocketAddress singleAddress = new InetSocketAddress(host, singlePort);
+        SocketAddress groupAddress = new InetSocketAddress(host, groupPort);
+        double one = run(singleAddress, true, connections, 64, seconds, new LatencyRecorder())[0];
+        double many = run(groupAddress, true, connections, 64, seconds, new LatencyRecorder())[0];
+        rows[2] = new String[] { "64 in flight, lines/s", String.format("%.0f", one), String.format("%.0f", many),
+                String.format("%.2f", many / one) };
+
+        one = sharedRoom(host, singlePort, connections, 2_000);
+        many = sharedRoom(host, groupPort, connections, 2_000);
+        rows[3] = new String[] { "shared room, deliveries/s", String.format("%.0f", one), String.format("%.0f", many),
+                String.format("%.2f", many / one) };
+
+        System.out.printf("%n%-30s %12s %12s %10s%n", connections + " connections, " + seconds + "s", "single",
+                "group", "group/one");
+        for (String[] row : rows) {
+            System.out.printf("%-30s %12s %12s %10s%n", (Object[]) row);
+        }
+    }
+
+    static void unix(String host, int port, String path, int connections, int seconds) throws Exception {
+        SocketAddress tcp = new InetSocketAddress(host, port);
+        SocketAddress unix = UnixDomainSocketAddress.of(path);
+
+        // Warm up the server on both, so neither pays for the JIT
+        run(tcp, true, connections, 64, Math.max(1, seconds / 2), new LatencyRecorder());
+        run(unix, true, connections, 64, Math.max(1, seconds / 2), new LatencyRecorder());
+
+        List<String[]> rows = new ArrayList<>();
+        for (int window : new int[] { 1, 64 }) {
+            double[][] results = new double[2][];
+            for (int t = 0; t < 2; t++) {
+                SocketAddress address = t == 0 ? tcp : unix;
+                LatencyRecorder latency = new LatencyRecorder();
+                long serverCpu = statsValue(tcp, "process.cpuMillis");
+                long clientCpu = cpuMillis();
+                long start = System.nanoTime();
+
+                double rate = run(address, true, connections, window, seconds, latency)[0];
+
+                double lines = rate * (System.nanoTime() - start) / 1e9;
+                results[t] = new double[] { rate, latency.percentile(0.50), latency.percentile(0.99),
+                        (statsValue(tcp, "process.cpuMillis") - serverCpu) * 1000 / lines,
+                        (cpuMillis() - clientCpu) * 1000 / lines };
+                System.out.printf("%d in flight, %s: %s%n", window, t == 0 ? "TCP " : "Unix", latency.summary());
+            }
+
+            String[] names = { "lines/s", "p50, us", "p99, us", "server CPU us/line", "client CPU us/line" };
+            for (int i = 0; i < names.length; i++) {
+                rows.add(new String[] { window + " in flight, " + names[i], String.format("%.1f", results[0][i]),
+                        String.format("%.1f", results[1][i]), String.format("%.2f", results[1][i] / results[0][i]) });
+            }
+        }
+
+        System.out.printf("%n%-34s %12s %12s %10s%n", connections + " connections, " + seconds + "s", "TCP", "Unix",
+                "Unix/TCP");
+        for (String[] row : rows) {
+            System.out.printf("%-34s %12s %12s %10s%n", (Object[]) row);
+        }
+    }
+
+    static long cpuMillis() {
+        return ProcessHandle.current().info().totalCpuDuration().map(d -> d.toMillis()).orElse(0L);
+    }
+
+    // One value from a ChatServer's /stats
+    static long statsValue(SocketAddress address, String name) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            channel.write(StandardCharsets.UTF_8.encode("/stats\n"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                    StandardCharsets.UTF_8));
+            String line;
+            long value = -1;
+            while ((line = in.readLine()) != null && !line.equals("OK")) {
+                if (line.startsWith("STATS " + name + " ")) {
+                    value = Long.parseLong(line.substring(name.length() + 7));
+                }
+            }
+            return value;
+        }
+    }
+
+    static void gateway(String host, int port, String secret, int users, int gateways, int messages)
+            throws Exception {
+        SocketAddress address = new InetSocketAddress(host, port);
+        double[][] results = new double[2][];
+
+        for (int t = 0; t < 2; t++) {
+            Socket sender = openSender(host, port);
+            OutputStream out = new BufferedOutputStream(sender.getOutputStream());
+            FanoutRoom room = t == 0 ? new FanoutRoom(host, port, "fanout", users)
+                    : new FanoutRoom(host, port, "fanout", users, gateways, secret);
+            room.drain(new AtomicBoolean(true), 1000, null);
+            fanoutRun(null, room, out, messages, 1);
+
+            long cpu = statsValue(address, "process.cpuMillis");
+            long bytes = room.bytesRead;
+            long before = room.delivered;
+            double rate = fanoutRun(null, room, out, messages, 1);
+            double deliveries = room.delivered - before;
+            results[t] = new double[] { deliveries, rate,
+                    (statsValue(address, "process.cpuMillis") - cpu) * 1e6 / deliveries,
+                    (room.bytesRead - bytes) / deliveries };
+
+            room.close();
+            sender.close();
+            // Let the server release the nicknames before they are taken again
+            Thread.sleep(3000);
+        }
+
+        String[] names = { "deliveries", "deliveries/s", "server CPU ns/delivery", "bytes read/delivery" };
+        System.out.printf("%n%-34s %14s %14s %10s%n", users + " users, " + messages + " lines",
+                users + " sockets", gateways + " gateways", "gw/direct");
+        for (int i = 0; i < names.length; i++) {
+            System.out.printf("%-34s %14.1f %14.1f %10.2f%n", names[i], results[0][i], results[1][i],
+                    results[1][i] / results[0][i]);
+        }
+    }
+
+    // Which process took each of count new connections, by the process.pid in /stats
+    static Map<Long, Integer> acceptSpread(String host, int port, int count) throws IOException {
+        Map<Long, Integer> spread = new TreeMap<>();
+        List<Socket> opened = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Socket socket = new Socket(host, port);
+            opened.add(socket);
+            socket.getOutputStream().write("/stats\n".getBytes(StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("OK")) {
+                if (line.startsWith("STATS process.pid ")) {
+                    spread.merge(Long.parseLong(line.substring("STATS process.pid ".length())), 1, Integer::sum);
+                }
+            }
+        }
+        for (Socket socket : opened) {
+            socket.close();
+        }
+        return spread;
+    }
+
+    // Deliveries per second of one sender to a room of members, after a warm-up run
+    static double sharedRoom(String host, int port, int members, int messages) throws Exception {
+        Socket sender = openSender(host, port);
+        OutputStream out = new BufferedOutputStream(sender.getOutputStream());
+        FanoutRoom room = new FanoutRoom(host, port, "fanout", members);
+        room.drain(new AtomicBoolean(true), 1000, null);
+
+        fanoutRun(null, room, out, messages, 1);
+        double rate = fanoutRun(null, room, out, messages, 1);
+        room.close();
+        sender.close();
+        return rate;
+    }
+
+    // One load against one server: { round trips per second, bytes written per second }
+    static double[] run(SocketAddress address, boolean chat, int connections, int window, int seconds,
+            LatencyRecorder recorder) throws InterruptedException {
+        List<Pipeline> pipelines = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Pipeline pipeline = new Pipeline(address, i, chat, window, seconds, recorder);
+            pipeline.start();
+            pipelines.add(pipeline);
+        }
+
+        long completed = 0;
+        long written = 0;
+        for (Pipeline pipeline : pipelines) {
+            pipeline.join(Math.max(1, start / 1_000_000 + seconds * 1000L + 5000 - System.nanoTime() / 1_000_000));
+            completed += pipeline.completed;
+            written += pipeline.bytesWritten;
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        return new double[] { completed / elapsed, written / elapsed };
+    }
+
+    // Connects count sockets from several threads; each one sets a nickname
+    static List<SocketChannel> openConnections(String host, int port, int count, int threads) throws Exception {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        List<SocketChannel> opened = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            pool.execute(() -> {
+                for (int i = first; i < count; i += threads) {
+                    try {
+                        SocketChannel sc = SocketChannel.open(address);
+                        sc.write(StandardCharsets.UTF_8.encode("/nick storm" + i + "\n"));
+                        opened.add(sc);
+                    } catch (IOException e) {
+                        System.err.println("connection " + i + ": " + e);
+                    }
+                }
+            });
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+        return opened;
+    }
+}
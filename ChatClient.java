@@ -1,13 +1,23 @@
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 
 public class ChatClient {
 
@@ -23,12 +33,42 @@ public class ChatClient {
     // A pre-allocated buffer for the received data
     static private ByteBuffer buffer = ByteBuffer.allocate(16384);
     private SocketChannel sc = null;
+    private Selector selector = null;
 
-    // Decoder for incoming text -- assume UTF-8
+    // What a new connection needs to pick up where the lost one was: the last
+    // /nick and /join sent, and whether we are leaving on purpose (/bye)
+    private InetSocketAddress address = null;
+    private volatile String lastNick = null;
+    private volatile String lastJoin = null;
+    private volatile boolean quitting = false;
+
+    // Decoder for incoming text -- assume UTF-8. It keeps a character split
+    // between two reads for the next one; chars is what it decoded so far and
+    // line the line being framed, cut off at MAX_LINE chars.
     static private final Charset charset = Charset.forName("UTF8");
-    static private final CharsetDecoder decoder = charset.newDecoder();
+    static private final CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    static private final int MAX_LINE = 64 * 1024;
+    private final CharBuffer chars = CharBuffer.allocate(16384);
+    private final StringBuilder line = new StringBuilder();
+
+    // Lines to send; the receive loop writes them, so typing never blocks on the socket
+    private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+
+    // Received text waiting for the next frame: the receive loop queues it and
+    // a Swing timer hands it to printMessage on the event thread, at most
+    // FRAME_RATE times a second. Only the last SCROLLBACK lines are kept,
+    // here and in the chat area.
+    static private final int SCROLLBACK = Integer.getInteger("chat.client.scrollback", 5000);
+    static private final int FRAME_RATE = Integer.getInteger("chat.client.fps", 30);
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private int pendingLines = 0;
 
-    java.util.List availableCommands = Arrays.asList("/join", "/leave", "/bye", "/nick", "/priv", "/merge");
+    // No /compress: this client cannot inflate the frames that would follow
+    static final java.util.List<String> availableCommands = Arrays.asList("/join", "/leave", "/bye", "/nick", "/priv",
+            "/merge", "/enter", "/part", "/to", "/list", "/who", "/search", "/session", "/resume", "/digest",
+            "/stats", "/pong", "/ignore", "/unignore", "/mute", "/unmute", "/gateway", "/trace");
 
     // Método a usar para acrescentar uma string à caixa de texto
     // * NÃO MODIFICAR *
@@ -69,8 +109,13 @@ public class ChatClient {
         });
         // --- Fim da inicialização da interface gráfica
 
+        new javax.swing.Timer(1000 / Math.max(1, FRAME_RATE), e -> flushPending()).start();
+
         InetSocketAddress sa = new InetSocketAddress(server, port);
+        address = sa;
         sc = SocketChannel.open(sa);
+        sc.configureBlocking(false);
+        selector = Selector.open();
 
     }
 
@@ -78,43 +123,243 @@ public class ChatClient {
     // na caixa de entrada
     public void newUserMessage(String message) throws IOException {
 
-        buffer.clear();
+        String wire = toWire(message);
+        if (wire.startsWith("/nick ")) {
+            lastNick = wire;
+        } else if (wire.startsWith("/join ")) {
+            lastJoin = wire;
+        } else if (wire.equals("/leave")) {
+            lastJoin = null;
+        } else if (wire.equals("/bye")) {
+            quitting = true;
+        }
+
+        send(wire + '\n');
 
+    }
+
+    // An unknown "/word" is sent escaped as "//word", so the server takes it as text
+    static String toWire(String message) {
         // check if it is a command and it's valid
-        if (message.charAt(0) == '/' && message.charAt(1) != '/') {
+        if (message.length() > 1 && message.charAt(0) == '/' && message.charAt(1) != '/') {
             String input[] = message.split(" ", 2);
             if (!availableCommands.contains(input[0])) {
                 message = "/" + message;
             }
         }
+        return message;
+    }
 
-        sc.write(charset.encode(message + '\n'));
-
+    private void send(String message) {
+        outgoing.add(charset.encode(message));
+        selector.wakeup();
     }
 
     // Método principal do objecto
     public void run() throws IOException {
         while (true) {
             try {
-                buffer.clear();
-                sc.read(buffer);
-                buffer.flip();
+                receive();
+            } catch (IOException ie) {
+                System.out.println("ERRO CLIENT: " + ie);
+            }
+            sc.close();
+
+            if (quitting) {
+                return;
+            }
+            show("Connection lost, reconnecting\n");
+            if (!reconnect()) {
+                // /bye while disconnected: there is no server left to answer BYE
+                SwingUtilities.invokeLater(frame::dispose);
+                return;
+            }
+            show("Reconnected\n");
+        }
+    }
+
+    // Runs until the connection is gone
+    private void receive() throws IOException {
+        SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
 
-                printMessage(handleServerMessage(decoder.decode(buffer).toString()));
+        while (true) {
+            selector.select();
+            selector.selectedKeys().clear();
+
+            if (!readLines()) {
+                show("Connection closed by the server\n");
+                return;
+            }
+            writeOutgoing(key);
+        }
+    }
 
+    // Tries again after each failure, waiting as Backoff says, then sends the
+    // last /nick and /join ahead of anything typed meanwhile; false if the
+    // user typed /bye before it got through
+    private boolean reconnect() {
+        for (int failures = 0; ; failures++) {
+            try {
+                Thread.sleep(Backoff.delayMs(failures));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (quitting) {
+                return false;
+            }
+
+            Backoff.attempts.acquireUninterruptibly();
+            SocketChannel channel = null;
+            try {
+                // A connect the server never answers gives up, so the permit is not held for good
+                channel = SocketChannel.open();
+                channel.socket().connect(address, Backoff.CONNECT_TIMEOUT_MS);
+                String restore = (lastNick != null ? lastNick + '\n' : "") + (lastJoin != null ? lastJoin + '\n' : "");
+                ByteBuffer pending = charset.encode(restore);
+                while (pending.hasRemaining()) {
+                    channel.write(pending);
+                }
+                channel.configureBlocking(false);
+                sc = channel;
+                break;
             } catch (IOException ie) {
-                System.out.println("ERRO CLIENT: " + ie);
+                // Still down; wait longer
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ie2) {
+                        // Nothing more to do with it
+                    }
+                }
+            } finally {
+                Backoff.attempts.release();
+            }
+        }
+
+        // Nothing half-received survives the old connection, and a line the
+        // old one took only part of goes out again whole
+        buffer.clear();
+        decoder.reset();
+        line.setLength(0);
+        ByteBuffer head = outgoing.peek();
+        if (head != null) {
+            head.rewind();
+        }
+        return true;
+    }
+
+    // Reads everything available and shows every complete line in one go;
+    // false once the server has closed the connection
+    private boolean readLines() throws IOException {
+        StringBuilder output = new StringBuilder();
+        int read;
+
+        while ((read = sc.read(buffer)) > 0) {
+            buffer.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(buffer, chars, false);
+                chars.flip();
+                frameLines(output);
+                chars.clear();
+            } while (result.isOverflow());
+            buffer.compact();
+        }
+
+        if (output.length() > 0) {
+            show(output.toString());
+        }
+        return read >= 0;
+    }
+
+    // Queues text for the next frame, dropping the oldest if the UI falls
+    // more than SCROLLBACK lines behind
+    private void show(String text) {
+        synchronized (pending) {
+            pending.add(text);
+            pendingLines += countLines(text);
+            while (pending.size() > 1 && pendingLines - countLines(pending.peek()) >= SCROLLBACK) {
+                pendingLines -= countLines(pending.poll());
+            }
+        }
+    }
+
+    // Runs on the event thread
+    private void flushPending() {
+        String batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = String.join("", pending);
+            pending.clear();
+            pendingLines = 0;
+        }
+
+        printMessage(batch);
+        trimScrollback();
+    }
+
+    // Cuts the oldest lines once there are a tenth more than SCROLLBACK, so
+    // the document is shifted now and then rather than on every frame
+    private void trimScrollback() {
+        // The text ends with '\n', so the last line is always empty
+        int excess = chatArea.getLineCount() - 1 - SCROLLBACK;
+        if (excess <= SCROLLBACK / 10) {
+            return;
+        }
+        try {
+            chatArea.getDocument().remove(0, chatArea.getLineStartOffset(excess));
+        } catch (BadLocationException e) {
+            // Cannot happen: excess is below the line count
+        }
+    }
+
+    static private int countLines(String text) {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private void frameLines(StringBuilder output) {
+        while (chars.hasRemaining()) {
+            char c = chars.get();
+            if (c == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                output.append(handleServerMessage(line.toString()));
+                line.setLength(0);
+            } else if (line.length() < MAX_LINE) {
+                line.append(c);
             }
         }
     }
 
+    // Writes queued lines until the socket is full, then waits for OP_WRITE
+    private void writeOutgoing(SelectionKey key) throws IOException {
+        ByteBuffer next;
+        while ((next = outgoing.peek()) != null) {
+            sc.write(next);
+            if (next.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            outgoing.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // message is one line, without its '\n'
     private String handleServerMessage(String message) {
         if (message.length() < 2) {
             return "";
         }
-        if (message.charAt(message.length() - 1) == '\n') {
-            message = message.substring(0, message.length() - 1);
-        }
         String[] messageSplit = message.split(" ", 3);
         switch (messageSplit[0]) {
             case "MESSAGE":
@@ -156,7 +401,13 @@ public class ChatClient {
                 }
                 break;
             case "BYE":
-                frame.dispose();
+                quitting = true;
+                SwingUtilities.invokeLater(frame::dispose);
+                break;
+            case "PING":
+                // Heartbeat from the server, answer silently
+                send("/pong\n");
+                message = "";
                 break;
             default:
                 message = message + "\n";
@@ -172,3 +423,349 @@ public class ChatClient {
     }
 
 }
+
+// When and how often to reconnect: after n failed attempts the next one waits
+// a random time up to reconnectBaseMs * 2^n (at most reconnectMaxMs), so
+// clients cut off together come back spread out, and at most maxReconnects
+// attempts run at once per JVM, each failing after connectTimeoutMs.
+class Backoff {
+    static final long BASE_MS = Long.getLong("chat.client.reconnectBaseMs", 250);
+    static final long MAX_MS = Long.getLong("chat.client.reconnectMaxMs", 30_000);
+    static final int CONNECT_TIMEOUT_MS = Integer.getInteger("chat.client.connectTimeoutMs", 5_000);
+    static final Semaphore attempts = new Semaphore(Integer.getInteger("chat.client.maxReconnects", 4));
+
+    static long delayMs(int failures) {
+        long ceiling = Math.min(MAX_MS, BASE_MS << Math.min(failures, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
+
+// Headless, scripted ChatClient sessions: replays a script such as in.txt and
+// times the replies, in as many instances as wanted on one selector.
+//
+//   java HeadlessClient <host> <port> <script|-> [instances] [paceMs]
+//
+// Every instance sends the script's lines paceMs apart (default 100), with
+// {i} replaced by its number; "#wait <ms>" pauses it and other lines starting
+// with '#' are skipped. Lines go out as ChatClient sends typed ones. Each line
+// sent or received is printed as "<instance> <micros since start> > <line>" or
+// "... < <line>", and the time from a sent line to the first line back is
+// summed up on stderr. An instance hangs up once its script is done and the
+// server has been quiet for a second, or when the server hangs up on it
+// after that or after BYE. Cut off earlier, it reconnects like ChatClient
+// (see Backoff), resends its last /nick and /join and goes on with the script.
+class HeadlessClient {
+    static private final long LINGER_NANOS = 1_000_000_000L;
+    static private final long SLOT_RETRY_NANOS = 5_000_000L;
+
+    static private class Session {
+        final int id;
+        SocketChannel sc;
+        SelectionKey key;
+
+        // Incoming bytes, decoded and framed like ChatClient does it
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer in = ByteBuffer.allocate(16384);
+        final CharBuffer chars = CharBuffer.allocate(16384);
+        final StringBuilder line = new StringBuilder();
+
+        // The unwritten rest of the last line sent, the next script line and
+        // when it is due, and when the last line went out (0 once answered)
+        ByteBuffer out;
+        int next;
+        long nextAt;
+        long sentAt;
+        long lastActivity;
+        boolean done;
+
+        // Reconnecting: sc is null until connectAt, then connecting until
+        // OP_CONNECT; failures counts the attempts that failed in a row
+        boolean connecting;
+        long connectAt;
+        int failures;
+        String lastNick;
+        String lastJoin;
+        boolean bye;
+
+        Session(int id) {
+            this.id = id;
+        }
+    }
+
+    static private java.util.List<String> script;
+    static private InetSocketAddress address;
+    static private long paceNanos;
+    static private long start;
+    static private PrintStream record;
+    static private long[] latencies = new long[1024];
+    static private int latencyCount = 0;
+    static private long sent = 0;
+    static private long received = 0;
+    static private long reconnects = 0;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: java HeadlessClient <host> <port> <script|-> [instances] [paceMs]");
+            return;
+        }
+
+        address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        BufferedReader reader = new BufferedReader(args[2].equals("-")
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : new InputStreamReader(new FileInputStream(args[2]), StandardCharsets.UTF_8));
+        script = new ArrayList<>();
+        for (String line; (line = reader.readLine()) != null; ) {
+            script.add(line);
+        }
+        int instances = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        paceNanos = (args.length > 4 ? Long.parseLong(args[4]) : 100) * 1_000_000L;
+        record = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                false, "UTF-8");
+
+        // Every instance starts out connecting, under the same cap as reconnects
+        Selector selector = Selector.open();
+        java.util.List<Session> sessions = new ArrayList<>();
+        start = System.nanoTime();
+        for (int i = 0; i < instances; i++) {
+            Session session = new Session(i);
+            session.connectAt = start;
+            sessions.add(session);
+        }
+
+        int open = instances;
+        while (open > 0) {
+            long now = System.nanoTime();
+            long wait = LINGER_NANOS;
+            for (Session session : sessions) {
+                if (!session.done) {
+                    wait = Math.min(wait, step(session, selector, now));
+                    if (session.done) {
+                        open--;
+                    }
+                }
+            }
+
+            selector.select(Math.max(1, wait / 1_000_000));
+            for (SelectionKey key : selector.selectedKeys()) {
+                Session session = (Session) key.attachment();
+                if (session.done || !key.isValid()) {
+                    continue;
+                }
+                try {
+                    if (key.isConnectable()) {
+                        connected(session);
+                    } else {
+                        if (key.isWritable()) {
+                            write(session);
+                        }
+                        if (key.isReadable() && !read(session)) {
+                            throw new EOFException();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (lost(session, System.nanoTime())) {
+                        open--;
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+
+        record.flush();
+        summary();
+    }
+
+    // Connects, sends what is due and hangs up if the session is over;
+    // returns the nanoseconds until it next needs a look
+    static private long step(Session session, Selector selector, long now) {
+        if (session.sc == null) {
+            if (now < session.connectAt) {
+                return session.connectAt - now;
+            }
+            if (!Backoff.attempts.tryAcquire()) {
+                return SLOT_RETRY_NANOS;
+            }
+            session.connecting = true;
+            try {
+                session.sc = SocketChannel.open();
+                session.sc.configureBlocking(false);
+                session.key = session.sc.register(selector, SelectionKey.OP_CONNECT, session);
+                if (session.sc.connect(address)) {
+                    connected(session);
+                }
+            } catch (IOException e) {
+                lost(session, now);
+            }
+            return session.sc == null ? Math.max(0, session.connectAt - now) : LINGER_NANOS;
+        }
+        if (session.connecting) {
+            return LINGER_NANOS;
+        }
+
+        try {
+            while (session.out == null && session.next < script.size() && now >= session.nextAt) {
+                String line = script.get(session.next++).replace("{i}", Integer.toString(session.id));
+
+                if (line.startsWith("#wait ")) {
+                    session.nextAt = now + Long.parseLong(line.substring(6).trim()) * 1_000_000L;
+                    continue;
+                }
+                if (line.startsWith("#") || line.isEmpty()) {
+                    continue;
+                }
+
+                line = ChatClient.toWire(line);
+                if (line.startsWith("/nick ")) {
+                    session.lastNick = line;
+                } else if (line.startsWith("/join ")) {
+                    session.lastJoin = line;
+                } else if (line.equals("/leave")) {
+                    session.lastJoin = null;
+                }
+                record.println(session.id + " " + (now - start) / 1000 + " > " + line);
+                session.out = StandardCharsets.UTF_8.encode(line + '\n');
+                session.sentAt = now;
+                session.lastActivity = now;
+                session.nextAt = now + paceNanos;
+                sent++;
+                write(session);
+            }
+        } catch (IOException e) {
+            lost(session, now);
+            return 0;
+        }
+
+        if (session.next < script.size()) {
+            return Math.max(0, session.nextAt - now);
+        }
+        if (session.out == null && now - session.lastActivity >= LINGER_NANOS) {
+            close(session);
+            session.done = true;
+            return LINGER_NANOS;
+        }
+        return Math.max(0, session.lastActivity + LINGER_NANOS - now);
+    }
+
+    static private void connected(Session session) throws IOException {
+        if (!session.sc.finishConnect()) {
+            return;
+        }
+
+        Backoff.attempts.release();
+        session.connecting = false;
+        session.failures = 0;
+        session.lastActivity = System.nanoTime();
+        session.key.interestOps(SelectionKey.OP_READ);
+
+        if (session.lastNick != null || session.lastJoin != null) {
+            reconnects++;
+            String restore = (session.lastNick != null ? session.lastNick + '\n' : "")
+                    + (session.lastJoin != null ? session.lastJoin + '\n' : "");
+            record.println(session.id + " " + (session.lastActivity - start) / 1000 + " ! reconnected");
+            session.out = StandardCharsets.UTF_8.encode(restore);
+            write(session);
+        }
+    }
+
+    // Drops the connection; true if the session is over, otherwise it
+    // reconnects after a backoff
+    static private boolean lost(Session session, long now) {
+        if (session.connecting) {
+            Backoff.attempts.release();
+            session.connecting = false;
+            session.failures++;
+        }
+        close(session);
+
+        if (session.bye || session.next >= script.size()) {
+            session.done = true;
+            return true;
+        }
+
+        session.connectAt = now + Backoff.delayMs(session.failures) * 1_000_000L;
+        session.out = null;
+        session.in.clear();
+        session.decoder.reset();
+        session.line.setLength(0);
+        return false;
+    }
+
+    static private void write(Session session) throws IOException {
+        session.sc.write(session.out);
+        if (session.out.hasRemaining()) {
+            session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            session.out = null;
+            session.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // Records every complete line that arrived; false at end of stream
+    static private boolean read(Session session) throws IOException {
+        int read;
+        while ((read = session.sc.read(session.in)) > 0) {
+            long now = System.nanoTime();
+            session.lastActivity = now;
+            session.in.flip();
+            CoderResult result;
+            do {
+                result = session.decoder.decode(session.in, session.chars, false);
+                session.chars.flip();
+                while (session.chars.hasRemaining()) {
+                    char c = session.chars.get();
+                    if (c != '\n') {
+                        session.line.append(c);
+                        continue;
+                    }
+
+                    received++;
+                    record.append(Integer.toString(session.id)).append(' ').append(Long.toString((now - start) / 1000))
+                            .append(" < ").append(session.line).append('\n');
+                    if (session.line.length() == 3 && session.line.toString().equals("BYE")) {
+                        session.bye = true;
+                    }
+                    session.line.setLength(0);
+                    if (session.sentAt != 0) {
+                        if (latencyCount == latencies.length) {
+                            latencies = Arrays.copyOf(latencies, latencyCount * 2);
+                        }
+                        latencies[latencyCount++] = now - session.sentAt;
+                        session.sentAt = 0;
+                    }
+                }
+                session.chars.clear();
+            } while (result.isOverflow());
+            session.in.compact();
+        }
+        return read >= 0;
+    }
+
+    static private void close(Session session) {
+        if (session.sc == null) {
+            return;
+        }
+        session.key.cancel();
+        try {
+            session.sc.close();
+        } catch (IOException e) {
+            // Gone either way
+        }
+        session.sc = null;
+    }
+
+    static private void summary() {
+        System.err.printf("%d lines sent, %d received, %d reconnects in %d ms%n", sent, received, reconnects,
+                (System.nanoTime() - start) / 1_000_000);
+        if (latencyCount == 0) {
+            return;
+        }
+
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        System.err.printf("first reply: n=%d p50=%dus p99=%dus p99.9=%dus max=%dus%n", latencyCount,
+                sorted[(int) (latencyCount * 0.50)] / 1000, sorted[(int) (latencyCount * 0.99)] / 1000,
+                sorted[(int) (latencyCount * 0.999)] / 1000, sorted[latencyCount - 1] / 1000);
+    }
+}
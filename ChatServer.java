@@ -2,8 +2,44 @@ import java.io.*;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.nio.channels.spi.AbstractSelectionKey;
 import java.nio.charset.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.zip.Deflater;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+enum RatePolicy {
+    QUEUE, // keep over-limit lines buffered and keep reading, up to a cap
+    DROP,  // discard the over-limit line and reply ERROR
+    PAUSE  // stop reading the socket until the bucket refills
+}
 
 enum ConnectionState {
     INIT,
@@ -12,24 +48,155 @@ enum ConnectionState {
 }
 
 class Client {
+    int id;
     String username;
     SocketChannel socketChannel;
-    String messageBuffer;
+
+    // Owned by the client's IoLoop: received bytes not yet framed into lines,
+    // input[inputStart, inputEnd), and the hand-off state towards the command stage
+    IoLoop io;
+    byte[] input = new byte[IoLoop.INITIAL_INPUT_SIZE];
+    int inputStart;
+    int inputEnd;
+    long readAt;
+    InboundEvent stalledEvent;
+    boolean backpressured;
+    boolean eof;
+    boolean closeSubmitted;
+
+    // "username " in UTF-8, refreshed only by /nick, so relayed lines never re-encode it
+    ByteBuffer encodedNick;
     ConnectionState state;
     String currentRoomIdentifier;
 
+    // Every room the client is in; currentRoomIdentifier is the one plain chat
+    // lines go to. After /enter, room traffic arrives as "IN <room> <seq> <line>".
+    // Fan-out workers read multiRoom, and deliver() reads compression, which
+    // only ever goes from null to set and is set under the client's lock.
+    final RoomSet rooms = new RoomSet();
+    volatile boolean multiRoom;
+    volatile CompressionContext compression;
+
+    // Set by the command stage once the client is gone; later events are ignored
+    boolean closed;
+
+    // Idle tracking: lastActivity is stamped on every read, the timer wheel
+    // re-checks it only when this client's slot comes due
+    SelectionKey key;
+    volatile long lastActivity;
+    long pingSentAt;
+    Client wheelPrev, wheelNext;
+    int wheelSlot = -1;
+
+    // Rate limiter buckets (see RateLimit), lines held back while over the
+    // limit, and whether the limiter asked the IoLoop to stop reading
+    long lineBucket;
+    long byteBucket;
+    boolean throttled;
+    ArrayDeque<InboundEvent> held;
+    int heldBytes;
+    volatile boolean limiterPaused;
+
+    // Frames not written yet, guarded by this Client's monitor: the command
+    // stage and fan-out workers queue them, the IoLoop writes them. The control
+    // lane goes out before the bulk lane, but a frame that was partly written
+    // (writing) is always finished first.
+    // flushRequested is set while the IoLoop has been asked to (or is waiting to) write.
+    final ArrayDeque<OutboundFrame> controlLane = new ArrayDeque<>();
+    final ArrayDeque<OutboundFrame> bulkLane = new ArrayDeque<>();
+    OutboundFrame writing;
+    long outboundBytes;
+    OutboundStallEvent stall;   // set while stalled, if a recording wants it
+    boolean flushRequested;
+    long flushRequestedAt;
+    boolean closeAfterFlush;
+
+    // Admission bookkeeping, released exactly once when the connection goes
+    // away; no remoteAddress for a Unix domain connection
+    InetAddress remoteAddress;
+    boolean admitted;
+
+    // Sent /digest: takes coalesced presence lines instead of one line per change.
+    // Otherwise, after joining during presence batch presenceBatch it only gets
+    // the legacy lines from presenceOffset on, like it would have one by one.
+    // Written by the command stage, read by fan-out workers: presenceOffset is
+    // written before presenceBatch, so a worker seeing the batch sees its offset.
+    volatile boolean presenceDigest;
+    volatile long presenceBatch;
+    volatile int presenceOffset;
+
+    // Set by /session: room broadcasts arrive as "SEQ n <line>" and the nickname
+    // and room can be taken over by a later connection with /resume
+    volatile Session session;
+
+    // A /list or /who reply still being streamed; lines after it wait in held
+    DirectoryListing listing;
+
+    // Connection ids whose room lines and /priv messages this client skips
+    // (see SortedIds); read by fan-out workers, replaced by the command stage
+    volatile int[] ignoring;
+
+    // A gateway connection (after /gateway) carries many users: its sessions
+    // by id, each a Client of its own with this gateway, its sessionId, a
+    // SessionKey and "<sessionId> " to put in front of everything it is sent
+    Map<Integer, Client> sessions;
+    Client gateway;
+    int sessionId;
+    ByteBuffer sessionPrefix;
+
     Client(String username, SocketChannel socketChannel) {
         this.username = username;
         this.socketChannel = socketChannel;
-        this.messageBuffer = "";
         this.state = ConnectionState.INIT;
         this.currentRoomIdentifier = null;
+        this.compression = null;
     }
 }
 
 class ChatRoom {
     String identifier;
     Set<Client> currentClients;
+    long broadcastBucket;
+
+    // Dense number for the clients' RoomSets, reused once the room is merged
+    // away, and how many members take room-tagged lines
+    int index;
+    int taggedMembers;
+
+    // Non-null while the room is large enough to fan out on the FanoutPool;
+    // shard i is only ever touched by worker i. shardsInFlight counts the
+    // shard deliveries queued and not finished yet.
+    Set<Client>[] shards;
+    final AtomicInteger shardsInFlight = new AtomicInteger();
+
+    // JOINED/LEFT changes not announced yet, in both wire forms. The digest
+    // groups consecutive changes of one kind: "JOINED a,b,c room".
+    long presenceBatch;
+    StringBuilder presenceDigest;
+    ByteArrayOutputStream presenceLegacy;
+    String presenceKind;
+    long presenceDueAt;
+    boolean presenceQueued;
+
+    // Sequence number of the next broadcast, and the latest ones (slot
+    // seq % retained.length) for /resume to replay in their sequenced forms
+    long nextSeq = 1;
+    RoomBroadcast[] retained;
+
+    // Members by nickname for /who, and the population the room is filed
+    // under in the RoomDirectory (0 while it is not listed)
+    final TreeSet<String> memberNames = new TreeSet<>();
+    int listedPopulation;
+
+    // Connection ids a moderator muted here (see SortedIds), and the
+    // fingerprints of recent lines, made on the room's first chat line
+    int[] muted;
+    DuplicateFilter recent;
+
+    // Tells the room apart from earlier ones by the same name, merged away
+    // since: /search history stays with the room it was said in
+    static private long epochs;
+    final long epoch = ++epochs;
 
     ChatRoom(String name) {
         this.identifier = name;
@@ -37,309 +204,4098 @@ class ChatRoom {
     }
 }
 
-public class ChatServer {
-    // A pre-allocated buffer for the received data
-    static private final ByteBuffer buffer = ByteBuffer.allocate(16384);
+// A client's rooms as a sorted array of ChatRoom.index values: a few ints per
+// client, and a membership test that never hashes
+class RoomSet {
+    int[] indexes = new int[2];
+    int size;
 
-    // Decoder for incoming text -- assume UTF-8
-    static private final Charset charset = Charset.forName("UTF8");
-    static private final CharsetDecoder decoder = charset.newDecoder();
+    boolean contains(int index) {
+        return Arrays.binarySearch(indexes, 0, size, index) >= 0;
+    }
 
-    static private final Map<String, Client> clients = new HashMap<>();
-    static private final Map<String, ChatRoom> chatRooms = new HashMap<>();
+    void add(int index) {
+        int at = Arrays.binarySearch(indexes, 0, size, index);
+        if (at >= 0) {
+            return;
+        }
+        at = -at - 1;
+        if (size == indexes.length) {
+            indexes = Arrays.copyOf(indexes, size * 2);
+        }
+        System.arraycopy(indexes, at, indexes, at + 1, size - at);
+        indexes[at] = index;
+        size++;
+    }
 
-    static public void main(String args[]) throws Exception {
+    void remove(int index) {
+        int at = Arrays.binarySearch(indexes, 0, size, index);
+        if (at >= 0) {
+            System.arraycopy(indexes, at + 1, indexes, at, size - at - 1);
+            size--;
+        }
+    }
+}
 
-        // Parse port from command line
-        int port = Integer.parseInt(args[0]);
+// Ignore lists and room mutes: sorted arrays of Client.id values that are
+// replaced, never changed, so fan-out workers can read them without locking.
+// null stands for the empty set, which keeps the common check to one null test.
+class SortedIds {
+    static boolean contains(int[] ids, int id) {
+        return ids != null && Arrays.binarySearch(ids, id) >= 0;
+    }
 
-        try {
-            // Instead of creating a ServerSocket, create a ServerSocketChannel
-            ServerSocketChannel ssc = ServerSocketChannel.open();
+    static int[] with(int[] ids, int id) {
+        if (ids == null) {
+            return new int[] { id };
+        }
+        int at = Arrays.binarySearch(ids, id);
+        if (at >= 0) {
+            return ids;
+        }
+        at = -at - 1;
+        int[] grown = new int[ids.length + 1];
+        System.arraycopy(ids, 0, grown, 0, at);
+        grown[at] = id;
+        System.arraycopy(ids, at, grown, at + 1, ids.length - at);
+        return grown;
+    }
 
-            // Set it to non-blocking, so we can use select
-            ssc.configureBlocking(false);
+    static int[] without(int[] ids, int id) {
+        int at = ids == null ? -1 : Arrays.binarySearch(ids, id);
+        if (at < 0) {
+            return ids;
+        }
+        if (ids.length == 1) {
+            return null;
+        }
+        int[] shrunk = new int[ids.length - 1];
+        System.arraycopy(ids, 0, shrunk, 0, at);
+        System.arraycopy(ids, at + 1, shrunk, at, shrunk.length - at);
+        return shrunk;
+    }
 
-            // Get the Socket connected to this channel, and bind it to the listening port
-            ServerSocket ss = ssc.socket();
-            InetSocketAddress isa = new InetSocketAddress(port);
-            ss.bind(isa);
+    static int[] union(int[] a, int[] b) {
+        if (b != null) {
+            for (int id : b) {
+                a = with(a, id);
+            }
+        }
+        return a;
+    }
+}
 
-            // Create a new Selector for selecting
-            Selector selector = Selector.open();
+// Fingerprints of a room's recent chat lines by sender, so a connection saying
+// the same text again within the window is dropped before fan-out; two people
+// saying the same thing are not. An open-addressed table of (hash, expiresAt)
+// pairs where an expired pair is a free slot; a line probes a few slots, and
+// when all of them are live the one expiring first makes room, so a flood of
+// distinct lines only forgets fingerprints early. A dropped repeat does not
+// extend the window, so a line said regularly gets through once per window.
+// Only the command stage uses it.
+class DuplicateFilter {
+    static private final int PROBES = 8;
 
-            // Register the ServerSocketChannel, so we can listen for incoming connections
-            ssc.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("Listening on port " + port);
+    private final long[] hashes;
+    private final long[] expiresAt;
 
-            while (true) {
-                // See if we've had any activity -- either an incoming connection,
-                // or incoming data on an existing connection
-                int num = selector.select();
+    DuplicateFilter(int slots) {
+        int size = Integer.highestOneBit(Math.max(PROBES, slots - 1) << 1);
+        hashes = new long[size];
+        expiresAt = new long[size];
+        Arrays.fill(expiresAt, Long.MIN_VALUE);
+    }
 
-                // If we don't have any activity, loop around and wait again
-                if (num == 0) {
-                    continue;
+    // True if the sender said the text within windowMs; otherwise it is remembered
+    boolean repeated(int sender, byte[] text, long now, long windowMs) {
+        long hash = fingerprint(sender, text);
+        int mask = hashes.length - 1;
+        int first = (int) (hash ^ (hash >>> 32)) & mask;
+        int victim = first;
+
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (first + i) & mask;
+            if (expiresAt[slot] > now && hashes[slot] == hash) {
+                return true;
+            }
+            if (expiresAt[slot] < expiresAt[victim]) {
+                victim = slot;
+            }
+        }
+
+        hashes[victim] = hash;
+        expiresAt[victim] = now + windowMs;
+        return false;
+    }
+
+    // 64-bit FNV-1a over the sender id and the text, then a finalizer so the
+    // low bits pick slots evenly
+    static long fingerprint(int sender, byte[] text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ ((sender >>> shift) & 0xff)) * 0x100000001b3L;
+        }
+        for (byte b : text) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        return hash ^ (hash >>> 33);
+    }
+}
+
+// The key of a gateway session, which has no channel of its own: commands
+// find their client through key.attachment() as for any connection. It is
+// never registered, so it must not be cancelled.
+class SessionKey extends AbstractSelectionKey {
+    private final Client gateway;
+
+    SessionKey(Client session, Client gateway) {
+        this.gateway = gateway;
+        attach(session);
+    }
+
+    @Override
+    public SelectableChannel channel() {
+        return gateway.socketChannel;
+    }
+
+    @Override
+    public Selector selector() {
+        return gateway.key.selector();
+    }
+
+    @Override
+    public int interestOps() {
+        return 0;
+    }
+
+    @Override
+    public SelectionKey interestOps(int ops) {
+        return this;
+    }
+
+    @Override
+    public int readyOps() {
+        return 0;
+    }
+}
+
+// The sessions of one gateway that a broadcast reaches, grouped by the form
+// they take, so each form goes to the gateway once as "TO <id>,<id>,... <line>"
+class GatewayBatch {
+    final Client gateway;
+    final List<ByteBuffer[]> forms = new ArrayList<>(2);
+    final List<StringBuilder> recipients = new ArrayList<>(2);
+
+    GatewayBatch(Client gateway) {
+        this.gateway = gateway;
+    }
+
+    void add(Client session, ByteBuffer[] parts) {
+        for (int i = 0; i < forms.size(); i++) {
+            if (forms.get(i) == parts) {
+                recipients.get(i).append(',').append(session.sessionId);
+                return;
+            }
+        }
+        forms.add(parts);
+        recipients.add(new StringBuilder("TO ").append(session.sessionId));
+    }
+}
+
+// The occupied rooms, sorted by name and busiest first, kept up to date as
+// members come and go so a /list never sorts or scans chatRooms. A room is
+// filed under its listedPopulation, which only changes while it is out of the
+// population index. Only the command stage uses it.
+class RoomDirectory {
+    final TreeMap<String, ChatRoom> byName = new TreeMap<>();
+    final TreeSet<ChatRoom> byPopulation = new TreeSet<>((a, b) -> a.listedPopulation != b.listedPopulation
+            ? Integer.compare(b.listedPopulation, a.listedPopulation)
+            : a.identifier.compareTo(b.identifier));
+
+    void update(ChatRoom room) {
+        int population = room.currentClients.size();
+        if (population == room.listedPopulation) {
+            return;
+        }
+
+        if (room.listedPopulation > 0) {
+            byPopulation.remove(room);
+        } else {
+            byName.put(room.identifier, room);
+        }
+        room.listedPopulation = population;
+        if (population > 0) {
+            byPopulation.add(room);
+        } else {
+            byName.remove(room.identifier);
+        }
+    }
+
+    void remove(ChatRoom room) {
+        if (room.listedPopulation > 0) {
+            byPopulation.remove(room);
+            byName.remove(room.identifier);
+            room.listedPopulation = 0;
+        }
+    }
+
+    int size() {
+        return byName.size();
+    }
+}
+
+// Where a streamed /list or /who reply got to. The cursor is the last name
+// sent (and its population, busiest-first), so rooms and members may come and
+// go between pages; a room that changes population meanwhile may be listed
+// twice or not at all.
+class DirectoryListing {
+    final Client client;
+    final ChatRoom room;   // /who, or null for /list
+    final String prefix;   // /list by name, or null for busiest first
+    String lastName;
+    int lastPopulation;
+
+    DirectoryListing(Client client, ChatRoom room, String prefix) {
+        this.client = client;
+        this.room = room;
+        this.prefix = prefix;
+    }
+}
+
+// A nickname and room that outlive one connection. While no connection holds
+// it the nickname stays reserved, until /resume takes it back or it expires.
+class Session {
+    final String token;
+    Client client;
+    String username;
+    String room;
+    long expiresAt;
+    boolean queued;
+
+    Session(String token, Client client) {
+        this.token = token;
+        this.client = client;
+    }
+}
+
+// One room broadcast in the forms the different clients take: digest (or
+// plain) parts, legacy parts for clients without /digest, sequenced parts for
+// clients with a session, and tagged parts once some member has used /enter. Each form has its own id for the compression cache.
+class RoomBroadcast {
+    ByteBuffer[] parts;
+    long id;
+    ByteBuffer[] legacyParts;
+    long legacyId;
+    ByteBuffer sequencedPrefix;
+    ByteBuffer[] sequenced;
+    long sequencedId;
+    ByteBuffer[] legacySequenced;
+    long legacySequencedId;
+    ByteBuffer taggedPrefix;
+    ByteBuffer[] tagged;
+    long taggedId;
+    ByteBuffer[] legacyTagged;
+    long legacyTaggedId;
+    long presenceBatch;
+    int sender = -1;   // Client.id of a chat line, for ignore lists
+    MessageTrace trace;
+}
+
+// Offline /priv mailboxes: an append-only log of segment files on disk, and
+// per nickname a compact index of where its messages are. A CLEAR record marks
+// a nickname's earlier messages as delivered, so the index can be rebuilt from
+// the log on startup. Segments are deleted oldest first -- a CLEAR must not
+// outlive the messages it clears -- once nothing in them is live or they have
+// expired; the byte cap and per-nickname cap bound disk and heap.
+// Only the command stage uses it.
+class Mailboxes {
+    static private final byte MESSAGE = 1;
+    static private final byte CLEAR = 2;
+    static private final int HEADER = 1 + 8 + 2 + 4;
+    static private final int LENGTH_BITS = 20;
+
+    // Index entries are pairs of longs: segment << 32 | payload offset, and time << 20 | length
+    static private class Mailbox {
+        long[] entries = new long[8];
+        int count;
+    }
+
+    static private class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size;
+        int live;
+        long newest;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final int maxPerNickname;
+    private final int maxMessageBytes;
+    private final long ttlMillis;
+
+    private final Map<String, Mailbox> mailboxes = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private int nextSegment = 0;
+    private long totalBytes = 0;
+    private long totalMessages = 0;
+
+    Mailboxes(File dir, long maxBytes, long segmentBytes, int maxPerNickname, int maxMessageBytes, long ttlMillis)
+            throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        this.maxPerNickname = maxPerNickname;
+        this.maxMessageBytes = Math.min(maxMessageBytes, (1 << LENGTH_BITS) - 1);
+        this.ttlMillis = ttlMillis;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        load();
+    }
+
+    int mailboxes() {
+        return mailboxes.size();
+    }
+
+    long messages() {
+        return totalMessages;
+    }
+
+    long bytes() {
+        return totalBytes;
+    }
+
+    // Returns false if a cap leaves no room for the message
+    boolean store(String nickname, byte[] line) throws IOException {
+        Mailbox mailbox = mailboxes.get(nickname);
+        if (line.length > maxMessageBytes || (mailbox != null && mailbox.count >= maxPerNickname)) {
+            return false;
+        }
+
+        byte[] name = nickname.getBytes(StandardCharsets.UTF_8);
+        if (totalBytes + HEADER + name.length + line.length > maxBytes) {
+            expire(System.currentTimeMillis());
+            if (totalBytes + HEADER + name.length + line.length > maxBytes) {
+                return false;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        long offset = append(MESSAGE, now, name, line);
+        if (mailbox == null) {
+            mailbox = new Mailbox();
+            mailboxes.put(nickname, mailbox);
+        }
+        add(mailbox, active, offset, now, line.length);
+        return true;
+    }
+
+    // Reads the nickname's unexpired messages in order and marks them delivered
+    List<ByteBuffer> take(String nickname) throws IOException {
+        Mailbox mailbox = mailboxes.remove(nickname);
+        List<ByteBuffer> lines = new ArrayList<>();
+        if (mailbox == null) {
+            return lines;
+        }
+
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        for (int i = 0; i < mailbox.count; i++) {
+            Segment segment = segments.get((int) (mailbox.entries[2 * i] >>> 32));
+            long offset = mailbox.entries[2 * i] & 0xffffffffL;
+            long time = mailbox.entries[2 * i + 1] >>> LENGTH_BITS;
+            int length = (int) (mailbox.entries[2 * i + 1] & ((1 << LENGTH_BITS) - 1));
+            if (segment == null) {
+                continue;
+            }
+            totalMessages--;
+            segment.live--;
+
+            if (time >= oldest) {
+                ByteBuffer line = ByteBuffer.allocate(length);
+                while (line.hasRemaining()) {
+                    if (segment.channel.read(line, offset + line.position()) < 0) {
+                        throw new EOFException(segment.file + " is shorter than its index");
+                    }
                 }
+                line.flip();
+                lines.add(line);
+            }
+        }
 
-                // Get the keys corresponding to the activity that has been
-                // detected, and process them one by one
-                Set<SelectionKey> keys = selector.selectedKeys();
-                Iterator<SelectionKey> it = keys.iterator();
-                while (it.hasNext()) {
-                    // Get a key representing one of bits of I/O activity
-                    SelectionKey key = it.next();
+        append(CLEAR, System.currentTimeMillis(), nickname.getBytes(StandardCharsets.UTF_8), new byte[0]);
+        compact();
+        return lines;
+    }
+
+    // Deletes segments whose newest record is past the TTL, and their index entries
+    void expire(long now) throws IOException {
+        boolean dropped = false;
+        while (!segments.isEmpty() && segments.firstEntry().getValue().newest < now - ttlMillis) {
+            Segment segment = segments.firstEntry().getValue();
+            if (segment == active) {
+                active = null;
+            }
+            drop(segment);
+            dropped = true;
+        }
+        if (!dropped) {
+            return;
+        }
+
+        Iterator<Mailbox> it = mailboxes.values().iterator();
+        while (it.hasNext()) {
+            Mailbox mailbox = it.next();
+            int kept = 0;
+            for (int i = 0; i < mailbox.count; i++) {
+                if (segments.containsKey((int) (mailbox.entries[2 * i] >>> 32))) {
+                    mailbox.entries[2 * kept] = mailbox.entries[2 * i];
+                    mailbox.entries[2 * kept + 1] = mailbox.entries[2 * i + 1];
+                    kept++;
+                } else {
+                    totalMessages--;
+                }
+            }
+            mailbox.count = kept;
+            if (kept == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private long append(byte kind, long time, byte[] name, byte[] payload) throws IOException {
+        int length = HEADER + name.length + payload.length;
+        if (active == null || active.size + length > segmentBytes) {
+            active = new Segment(nextSegment, new File(dir, "mailbox-" + nextSegment + ".log"));
+            segments.put(nextSegment++, active);
+            compact();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.put(kind).putLong(time).putShort((short) name.length).put(name).putInt(payload.length).put(payload);
+        record.flip();
+
+        long offset = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size += length;
+        active.newest = time;
+        totalBytes += length;
+        return offset + HEADER + name.length;
+    }
+
+    private void add(Mailbox mailbox, Segment segment, long offset, long time, int length) {
+        if (2 * mailbox.count == mailbox.entries.length) {
+            mailbox.entries = Arrays.copyOf(mailbox.entries, mailbox.entries.length * 2);
+        }
+        mailbox.entries[2 * mailbox.count] = ((long) segment.id << 32) | offset;
+        mailbox.entries[2 * mailbox.count + 1] = (time << LENGTH_BITS) | length;
+        mailbox.count++;
+        segment.live++;
+        totalMessages++;
+    }
+
+    private void compact() throws IOException {
+        while (!segments.isEmpty() && segments.firstEntry().getValue() != active
+                && segments.firstEntry().getValue().live == 0) {
+            drop(segments.firstEntry().getValue());
+        }
+    }
+
+    private void drop(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        totalBytes -= segment.size;
+        segment.channel.close();
+        Files.deleteIfExists(segment.file.toPath());
+    }
+
+    // Rebuilds the index; a record cut short by a crash ends its segment
+    private void load() throws IOException {
+        File[] files = dir.listFiles((d, n) -> n.matches("mailbox-\\d+\\.log"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingInt(
+                f -> Integer.parseInt(f.getName().replaceAll("\\D", ""))));
+
+        for (File file : files) {
+            int id = Integer.parseInt(file.getName().replaceAll("\\D", ""));
+            Segment segment = new Segment(id, file);
+            segments.put(id, segment);
+            nextSegment = id + 1;
+
+            long offset = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    byte kind = in.readByte();
+                    long time = in.readLong();
+                    byte[] name = new byte[in.readShort() & 0xffff];
+                    in.readFully(name);
+                    int length = in.readInt();
+                    in.skipNBytes(length);
+
+                    String nickname = new String(name, StandardCharsets.UTF_8);
+                    if (kind == MESSAGE) {
+                        add(mailboxes.computeIfAbsent(nickname, n -> new Mailbox()), segment,
+                                offset + HEADER + name.length, time, length);
+                    } else {
+                        clear(nickname);
+                    }
+                    offset += HEADER + name.length + length;
+                    segment.newest = time;
+                }
+            } catch (EOFException e) {
+                // End of the segment, or of its last complete record
+            }
+
+            if (offset < segment.size) {
+                segment.channel.truncate(offset);
+                segment.size = offset;
+            }
+            totalBytes += segment.size;
+        }
+
+        compact();
+        expire(System.currentTimeMillis());
+    }
+
+    private void clear(String nickname) {
+        Mailbox mailbox = mailboxes.remove(nickname);
+        if (mailbox == null) {
+            return;
+        }
+        for (int i = 0; i < mailbox.count; i++) {
+            segments.get((int) (mailbox.entries[2 * i] >>> 32)).live--;
+            totalMessages--;
+        }
+    }
+}
+
+// Full-text index of room history for /search. The command stage only queues
+// documents and queries; this thread tokenises, indexes and answers them, so
+// a query never holds up message processing. New documents go to an in-memory
+// buffer that is frozen into an immutable segment every flushDocs documents,
+// and the newest segments are merged whenever MERGE_FACTOR of them share a
+// size tier. Posting lists are keyed by room epoch and term and hold delta + varint
+// coded document numbers. Only the newest maxDocs documents are kept; older
+// ones drop out at query and merge time.
+class SearchIndex extends Thread {
+    static private final int MERGE_FACTOR = 4;
+    static private final int MAX_TERM_LENGTH = 64;
+
+    static private final LongAdder indexed = Metrics.counter("search.indexed");
+    static private final LongAdder dropped = Metrics.counter("search.dropped");
+    static private final LongAdder queries = Metrics.counter("search.queries");
+    static private final LongAdder merges = Metrics.counter("search.merges");
+    static private final LatencyHistogram queryLatency = Metrics.histogram("search.query");
+
+    static private class Document {
+        final long room;
+        final long seq;
+        final String sender;
+        final byte[] body;
+
+        Document(long room, long seq, String sender, byte[] body) {
+            this.room = room;
+            this.seq = seq;
+            this.sender = sender;
+            this.body = body;
+        }
+    }
+
+    static private class Query {
+        final Client client;
+        final long room;
+        final String terms;
+        final long queuedAt = System.nanoTime();
+
+        Query(Client client, long room, String terms) {
+            this.client = client;
+            this.room = room;
+            this.terms = terms;
+        }
+    }
+
+    static private class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    // Documents [base, end); postings hold document numbers relative to base
+    static private class Segment {
+        final long base;
+        final long end;
+        final Map<String, byte[]> postings;
+        final long bytes;
+
+        Segment(long base, long end, Map<String, byte[]> postings) {
+            this.base = base;
+            this.end = end;
+            this.postings = postings;
+            long total = 0;
+            for (byte[] p : postings.values()) {
+                total += p.length;
+            }
+            this.bytes = total;
+        }
+
+        int tier(int flushDocs) {
+            long docs = Math.max(1, (end - base) / flushDocs);
+            return (63 - Long.numberOfLeadingZeros(docs)) / 2;
+        }
+    }
+
+    private final ArrayBlockingQueue<Object> inbox;
+    private final int maxDocs;
+    private final int flushDocs;
+    private final int maxResults;
+
+    // Result lines of the newest maxDocs documents, slot doc % maxDocs
+    private final byte[][] lines;
+    private long nextDoc = 0;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private Map<String, IntList> buffer = new HashMap<>();
+    private long bufferBase = 0;
+
+    private volatile int segmentCount = 0;
+    private volatile long postingBytes = 0;
+
+    SearchIndex(int maxDocs, int flushDocs, int maxResults, int queueCapacity) {
+        super("search");
+        setDaemon(true);
+        this.inbox = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxDocs = maxDocs;
+        this.flushDocs = flushDocs;
+        this.maxResults = maxResults;
+        this.lines = new byte[maxDocs][];
+
+        Metrics.gauge("search.segments", () -> segmentCount);
+        Metrics.gauge("search.postingBytes", () -> postingBytes);
+    }
+
+    // Called by the command stage; drops the document rather than wait
+    void add(long room, long seq, String sender, byte[] body) {
+        if (!inbox.offer(new Document(room, seq, sender, body))) {
+            dropped.increment();
+        }
+    }
+
+    boolean search(Client client, long room, String terms) {
+        return inbox.offer(new Query(client, room, terms));
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Object item = inbox.take();
+                if (item instanceof Document) {
+                    index((Document) item);
+                } else {
+                    answer((Query) item);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void index(Document document) {
+        long doc = nextDoc++;
+        byte[] head = ("SEARCH " + document.seq + " " + document.sender + " ").getBytes(StandardCharsets.UTF_8);
+        byte[] line = Arrays.copyOf(head, head.length + document.body.length);
+        System.arraycopy(document.body, 0, line, head.length, document.body.length);
+        lines[(int) (doc % maxDocs)] = line;
+
+        String prefix = document.room + "\0";
+        for (String term : tokenize(new String(document.body, StandardCharsets.UTF_8))) {
+            buffer.computeIfAbsent(prefix + term, k -> new IntList()).add((int) (doc - bufferBase));
+        }
+        indexed.increment();
+
+        if (nextDoc - bufferBase >= flushDocs) {
+            freeze();
+        }
+    }
+
+    // Lowercased runs of letters and digits, each once
+    static private Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private void freeze() {
+        Map<String, byte[]> postings = new HashMap<>(buffer.size() * 2);
+        for (Map.Entry<String, IntList> e : buffer.entrySet()) {
+            postings.put(e.getKey(), encode(e.getValue().values, e.getValue().size));
+        }
+        segments.add(new Segment(bufferBase, nextDoc, postings));
+        buffer = new HashMap<>();
+        bufferBase = nextDoc;
+
+        // Forget segments that only hold evicted documents, then merge equal tiers
+        long oldest = nextDoc - maxDocs;
+        while (!segments.isEmpty() && segments.get(0).end <= oldest) {
+            segments.remove(0);
+        }
+        while (segments.size() >= MERGE_FACTOR) {
+            int tier = segments.get(segments.size() - 1).tier(flushDocs);
+            List<Segment> newest = segments.subList(segments.size() - MERGE_FACTOR, segments.size());
+            boolean sameTier = true;
+            for (Segment segment : newest) {
+                sameTier &= segment.tier(flushDocs) == tier;
+            }
+            if (!sameTier) {
+                break;
+            }
+
+            Segment merged = merge(new ArrayList<>(newest), oldest);
+            newest.clear();
+            segments.add(merged);
+            merges.increment();
+        }
+
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes;
+        }
+        postingBytes = bytes;
+        segmentCount = segments.size();
+    }
+
+    // The segments are adjacent and oldest first, so postings just concatenate
+    private Segment merge(List<Segment> parts, long oldest) {
+        long base = Math.max(parts.get(0).base, oldest);
+        Map<String, IntList> union = new HashMap<>();
+        for (Segment part : parts) {
+            for (Map.Entry<String, byte[]> e : part.postings.entrySet()) {
+                IntList docs = null;
+                for (int relative : decode(e.getValue())) {
+                    long doc = part.base + relative;
+                    if (doc >= base) {
+                        if (docs == null) {
+                            docs = union.computeIfAbsent(e.getKey(), k -> new IntList());
+                        }
+                        docs.add((int) (doc - base));
+                    }
+                }
+            }
+        }
+
+        Map<String, byte[]> postings = new HashMap<>(union.size() * 2);
+        for (Map.Entry<String, IntList> e : union.entrySet()) {
+            postings.put(e.getKey(), encode(e.getValue().values, e.getValue().size));
+        }
+        return new Segment(base, parts.get(parts.size() - 1).end, postings);
+    }
+
+    // Newest matches first: every term must occur in the document
+    private void answer(Query query) {
+        queries.increment();
+        Set<String> terms = tokenize(query.terms);
+        List<ByteBuffer> reply = new ArrayList<>();
+        long oldest = nextDoc - maxDocs;
+
+        if (!terms.isEmpty()) {
+            String prefix = query.room + "\0";
+
+            // The live buffer holds the newest documents
+            int[][] lists = new int[terms.size()][];
+            int t = 0;
+            for (String term : terms) {
+                IntList docs = buffer.get(prefix + term);
+                lists[t++] = docs == null ? null : Arrays.copyOf(docs.values, docs.size);
+            }
+            collect(lists, bufferBase, oldest, reply);
+
+            for (int i = segments.size() - 1; i >= 0 && reply.size() < maxResults; i--) {
+                Segment segment = segments.get(i);
+                t = 0;
+                for (String term : terms) {
+                    byte[] postings = segment.postings.get(prefix + term);
+                    lists[t++] = postings == null ? null : decode(postings);
+                }
+                collect(lists, segment.base, oldest, reply);
+            }
+        }
+
+        reply.add(ByteBuffer.wrap(("OK" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)));
+        ChatServer.reply(query.client, reply.toArray(new ByteBuffer[0]));
+        queryLatency.record(System.nanoTime() - query.queuedAt);
+    }
+
+    // Intersects sorted lists from the back, adding matches until the reply is full
+    private void collect(int[][] lists, long base, long oldest, List<ByteBuffer> reply) {
+        int[] positions = new int[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            if (lists[i] == null) {
+                return;
+            }
+            positions[i] = lists[i].length - 1;
+        }
+
+        while (reply.size() < maxResults) {
+            int candidate = Integer.MAX_VALUE;
+            for (int i = 0; i < lists.length; i++) {
+                if (positions[i] < 0) {
+                    return;
+                }
+                candidate = Math.min(candidate, lists[i][positions[i]]);
+            }
+
+            boolean all = true;
+            for (int i = 0; i < lists.length; i++) {
+                while (positions[i] >= 0 && lists[i][positions[i]] > candidate) {
+                    positions[i]--;
+                }
+                all &= positions[i] >= 0 && lists[i][positions[i]] == candidate;
+            }
+            if (!all) {
+                continue;
+            }
+
+            long doc = base + candidate;
+            if (doc < oldest) {
+                return;
+            }
+            reply.add(ByteBuffer.wrap(lines[(int) (doc % maxDocs)]));
+            for (int i = 0; i < lists.length; i++) {
+                positions[i]--;
+            }
+        }
+    }
+
+    // Count, then the gaps between ascending values, as varints
+    static private byte[] encode(int[] values, int count) {
+        byte[] out = new byte[5 * (count + 1)];
+        int n = putVarint(out, 0, count);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            n = putVarint(out, n, values[i] - previous);
+            previous = values[i];
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    static private int putVarint(byte[] out, int n, int value) {
+        while ((value & ~0x7f) != 0) {
+            out[n++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[n++] = (byte) value;
+        return n;
+    }
+
+    static private int[] decode(byte[] in) {
+        int[] position = { 0 };
+        int[] values = new int[getVarint(in, position)];
+        int previous = 0;
+        for (int i = 0; i < values.length; i++) {
+            previous += getVarint(in, position);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    static private int getVarint(byte[] in, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[position[0]++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
+
+// Named counters and gauges, reported to clients through /stats
+class Metrics {
+    static private final Map<String, LongAdder> counters = new TreeMap<>();
+    static private final Map<String, LongSupplier> gauges = new TreeMap<>();
+    static private final Map<String, LatencyHistogram> histograms = new TreeMap<>();
+
+    static synchronized LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    static synchronized void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    static synchronized LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    static synchronized long value(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    static synchronized List<String> snapshot() {
+        Map<String, Long> all = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            all.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            all.put(e.getKey(), e.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            all.put(e.getKey() + ".count", h.count());
+            all.put(e.getKey() + ".p50Us", h.percentile(0.50) / 1000);
+            all.put(e.getKey() + ".p99Us", h.percentile(0.99) / 1000);
+            all.put(e.getKey() + ".maxUs", h.max() / 1000);
+        }
+
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Long> e : all.entrySet()) {
+            lines.add(e.getKey() + " " + e.getValue());
+        }
+        return lines;
+    }
+}
+
+// Log-linear latency histogram in the spirit of HdrHistogram: values are
+// bucketed by power of two with 16 linear sub-buckets each (about 6% error),
+// and recording is a couple of atomic increments, safe from any thread
+class LatencyHistogram {
+    static private final int SUB_BITS = 4;
+    static private final int SUB_MASK = (1 << SUB_BITS) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BITS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    // Lower bound of the bucket holding the given percentile, 0 if empty
+    long percentile(double p) {
+        long target = (long) Math.ceil(p * total.sum());
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target && seen > 0) {
+                return lowerBound(i);
+            }
+        }
+        return 0;
+    }
+
+    static private int index(long value) {
+        if (value <= SUB_MASK) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & SUB_MASK;
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    static private long lowerBound(int index) {
+        if (index <= SUB_MASK) {
+            return index;
+        }
+        int exponent = (index >> SUB_BITS) + SUB_BITS - 1;
+        return (1L << exponent) + ((long) (index & SUB_MASK) << (exponent - SUB_BITS));
+    }
+}
+
+// Flight recorder events, to line chat operations up with GC and I/O in a
+// recording (jcmd <pid> JFR.start, or -XX:StartFlightRecording). While no
+// recording enables them, begin() and shouldCommit() cost next to nothing
+// and no field is filled in. Commands and broadcasts are only recorded above
+// 1 ms unless the recording lowers it, e.g. chat.Command#threshold=0ms.
+@Name("chat.Command")
+@Label("Chat Command")
+@Category("Chat")
+@StackTrace(false)
+@Threshold("1 ms")
+class CommandEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Client Id")
+    int client;
+}
+
+// Measured on the command stage: for a parallel fan-out, only handing the shards to the FanoutPool
+@Name("chat.Broadcast")
+@Label("Room Broadcast")
+@Category("Chat")
+@StackTrace(false)
+@Threshold("1 ms")
+class BroadcastEvent extends Event {
+    @Label("Room")
+    String room;
+
+    @Label("Members")
+    int members;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Parallel")
+    boolean parallel;
+}
+
+@Name("chat.Merge")
+@Label("Room Merge")
+@Category("Chat")
+@StackTrace(false)
+class MergeEvent extends Event {
+    @Label("Merged Room")
+    String from;
+
+    @Label("Into Room")
+    String into;
+
+    @Label("Merged Members")
+    int fromMembers;
+
+    @Label("Members Before")
+    int intoMembers;
+}
+
+@Name("chat.Connection")
+@Label("Connection")
+@Category("Chat")
+@StackTrace(false)
+class ConnectionEvent extends Event {
+    @Label("Action")
+    String action;
+
+    @Label("Client Id")
+    int client;
+
+    @Label("Nickname")
+    String nickname;
+
+    @Label("Address")
+    String address;
+}
+
+// From the write that filled the socket buffer to the one that emptied the queue
+@Name("chat.OutboundStall")
+@Label("Outbound Stall")
+@Category("Chat")
+@StackTrace(false)
+class OutboundStallEvent extends Event {
+    @Label("Client Id")
+    int client;
+
+    @Label("Queued")
+    @DataAmount
+    long queuedBytes;
+}
+
+// What the fan-out and the IoLoops need of a sampled line: when it was read
+// and when the command stage took it up. Its broadcast and every frame queued
+// for it share one; everything else carries null.
+class MessageTrace {
+    final long readAt;
+    final long dispatchedAt;
+
+    MessageTrace(long readAt, long dispatchedAt) {
+        this.readAt = readAt;
+        this.dispatchedAt = dispatchedAt;
+    }
+}
+
+// A unit of work handed from an IoLoop to the command stage
+class InboundEvent {
+    static final int OPEN = 0;
+    static final int LINE = 1;
+    static final int CLOSE = 2;
+    static final int PEER = 3;      // a chat line from another process (see PeerLinks); no client
+
+    final int kind;
+    final Client client;
+    final byte[] line;
+    final long readAt;
+    long queuedAt;
+    boolean traced;
+
+    InboundEvent(int kind, Client client, byte[] line, long readAt) {
+        this.kind = kind;
+        this.client = client;
+        this.line = line;
+        this.readAt = readAt;
+    }
+}
+
+// One queued reply or broadcast. Control frames (command replies, private
+// messages, PING) overtake bulk room traffic; a FENCE frame is sent after
+// everything queued before it, in either lane, and before anything queued later.
+class OutboundFrame {
+    static final int CONTROL = 0;
+    static final int BULK = 1;
+    static final int FENCE = 2;
+
+    final ByteBuffer[] parts;
+    final int lane;
+    final long queuedAt;
+    final MessageTrace trace;
+
+    OutboundFrame(ByteBuffer[] parts, int lane, long queuedAt, MessageTrace trace) {
+        this.parts = parts;
+        this.lane = lane;
+        this.queuedAt = queuedAt;
+        this.trace = trace;
+    }
+
+    boolean isWritten() {
+        for (ByteBuffer part : parts) {
+            if (part.hasRemaining()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// Bounded lock-free queue for any number of producers and consumers
+// (Vyukov's array queue): every slot carries a sequence number that says
+// whether it is free for the producer at a position or full for the consumer
+class BoundedQueue<E> {
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    BoundedQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return items.length;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Returns false when the queue is full
+    boolean offer(E item) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        items[index] = item;
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long position = head.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+
+        E item = (E) items[index];
+        items[index] = null;
+        sequences.set(index, position + mask + 1);
+        return item;
+    }
+}
+
+// One I/O thread. It owns a Selector and the sockets assigned to it, frames
+// their input into lines for the command stage, and writes the frames that the
+// command stage and fan-out workers queue on each Client. It never touches
+// room or nickname state.
+class IoLoop extends Thread {
+    static final int INITIAL_INPUT_SIZE = 256;
+
+    static private final LatencyHistogram frameLatency = Metrics.histogram("stage.frame");
+    static private final LatencyHistogram outboundLatency = Metrics.histogram("stage.outboundWait");
+    static private final LatencyHistogram controlLaneLatency = Metrics.histogram("outbound.controlWait");
+    static private final LatencyHistogram bulkLaneLatency = Metrics.histogram("outbound.bulkWait");
+    static private final LatencyHistogram traceWrite = Metrics.histogram("trace.write");
+    static private final LatencyHistogram traceTotal = Metrics.histogram("trace.total");
+    static private final LongAdder commandQueueFull = Metrics.counter("stage.commandQueueFull");
+    static private final LongAdder outboundStalls = Metrics.counter("outbound.stalls");
+
+    private final Selector selector;
+    private final BoundedQueue<InboundEvent> commandQueue;
+    private final ByteBuffer buffer = ByteBuffer.allocate(16384);
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+    private final ConcurrentLinkedQueue<Client> registrations = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Client> flushRequests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Client> closeRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    // Clients whose next event is waiting for room in the command queue
+    private final ArrayList<Client> backpressured = new ArrayList<>();
+
+    IoLoop(int index, BoundedQueue<InboundEvent> commandQueue) throws IOException {
+        super("io-" + index);
+        setDaemon(true);
+        this.selector = Selector.open();
+        this.commandQueue = commandQueue;
+    }
+
+    int pendingFlushes() {
+        return flushRequests.size();
+    }
+
+    void register(Client client) {
+        registrations.add(client);
+        wakeup();
+    }
+
+    void requestFlush(Client client) {
+        flushRequests.add(client);
+        wakeup();
+    }
+
+    // Only the IoLoop cancels its keys and closes its sockets, so nothing it
+    // is in the middle of can be cancelled under it
+    void requestClose(Client client) {
+        closeRequests.add(client);
+        wakeup();
+    }
+
+    void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // Poll quickly while some input waits for room in the command queue
+                selector.select(backpressured.isEmpty() ? 0 : 1);
+                wakeupPending.set(false);
+
+                Client client;
+                while ((client = registrations.poll()) != null) {
+                    open(client);
+                }
+                while ((client = flushRequests.poll()) != null) {
+                    flush(client);
+                }
+                while ((client = closeRequests.poll()) != null) {
+                    close(client);
+                }
+                for (int i = backpressured.size() - 1; i >= 0; i--) {
+                    if (pump(backpressured.get(i))) {
+                        backpressured.set(i, backpressured.get(backpressured.size() - 1));
+                        backpressured.remove(backpressured.size() - 1);
+                    }
+                }
+
+                Set<SelectionKey> keys = selector.selectedKeys();
+                for (SelectionKey key : keys) {
+                    client = (Client) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            flush(client);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(client);
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Closed on request while we were at it
+                    } catch (RuntimeException e) {
+                        // One broken connection must not end the loop for all the others
+                        System.err.println("Error on connection " + client.id + ": " + e);
+                        close(client);
+                        client.eof = true;
+                        pump(client);
+                    }
+                }
+                keys.clear();
+            } catch (IOException | RuntimeException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    private void close(Client client) {
+        if (client.key != null) {
+            client.key.cancel();
+        }
+        try {
+            client.socketChannel.close();
+        } catch (IOException ie) {
+            System.out.println(ie);
+        }
+    }
+
+    private void open(Client client) {
+        try {
+            client.key = client.socketChannel.register(selector, SelectionKey.OP_READ, client);
+        } catch (ClosedChannelException e) {
+            return;
+        }
+
+        client.stalledEvent = new InboundEvent(InboundEvent.OPEN, client, null, System.nanoTime());
+        pump(client);
+    }
+
+    private void read(Client client) {
+        buffer.clear();
+        int n;
+        try {
+            n = client.socketChannel.read(buffer);
+        } catch (IOException ie) {
+            n = -1;
+        }
+
+        // End of stream or a broken connection: hand over what is left, then the close
+        if (n < 0) {
+            client.eof = true;
+            ChatServer.updateReadInterest(client);
+            pump(client);
+            return;
+        }
+
+        buffer.flip();
+        client.readAt = System.nanoTime();
+        client.lastActivity = ChatServer.now();
+        appendInput(client, buffer);
+        pump(client);
+    }
+
+    private void appendInput(Client client, ByteBuffer bb) {
+        int length = bb.remaining();
+
+        if (client.inputEnd + length > client.input.length) {
+            // Compact, and grow only if that does not make enough room
+            int pending = client.inputEnd - client.inputStart;
+            byte[] target = client.input;
+            if (pending + length > target.length) {
+                target = new byte[Math.max(target.length * 2, pending + length)];
+            }
+            System.arraycopy(client.input, client.inputStart, target, 0, pending);
+            client.input = target;
+            client.inputStart = 0;
+            client.inputEnd = pending;
+        }
+
+        bb.get(client.input, client.inputEnd, length);
+        client.inputEnd += length;
+    }
+
+    // Hands every complete line, and after end of stream the close, to the command
+    // stage; returns false if the queue was full and the client must be retried
+    private boolean pump(Client client) {
+        if (client.stalledEvent != null) {
+            if (!offer(client.stalledEvent)) {
+                return stall(client);
+            }
+            client.stalledEvent = null;
+        }
+
+        while (true) {
+            int start = client.inputStart;
+            int end = start;
+            while (end < client.inputEnd && client.input[end] != '\n') {
+                end++;
+            }
+            if (end == client.inputEnd) {
+                break;
+            }
+            end++;
+
+            InboundEvent event = new InboundEvent(InboundEvent.LINE, client,
+                    Arrays.copyOfRange(client.input, start, end), client.readAt);
+            event.traced = ChatServer.sampleTrace();
+            client.inputStart = end;
+            if (!offer(event)) {
+                client.stalledEvent = event;
+                return stall(client);
+            }
+        }
+
+        // Drop a buffer that grew for one long line once it is drained
+        if (client.inputStart == client.inputEnd) {
+            client.inputStart = 0;
+            client.inputEnd = 0;
+            if (client.input.length > 16 * INITIAL_INPUT_SIZE) {
+                client.input = new byte[INITIAL_INPUT_SIZE];
+            }
+        }
+
+        if (client.eof && !client.closeSubmitted) {
+            client.closeSubmitted = true;
+            InboundEvent event = new InboundEvent(InboundEvent.CLOSE, client, null, System.nanoTime());
+            if (!offer(event)) {
+                client.stalledEvent = event;
+                return stall(client);
+            }
+        }
+
+        if (client.backpressured) {
+            client.backpressured = false;
+            ChatServer.updateReadInterest(client);
+        }
+        return true;
+    }
+
+    private boolean offer(InboundEvent event) {
+        event.queuedAt = System.nanoTime();
+        if (!commandQueue.offer(event)) {
+            return false;
+        }
+
+        frameLatency.record(event.queuedAt - event.readAt);
+        ChatServer.signalCommandStage();
+        return true;
+    }
+
+    // Stops reading from the client until its events fit in the command queue
+    private boolean stall(Client client) {
+        if (!client.backpressured) {
+            client.backpressured = true;
+            commandQueueFull.increment();
+            backpressured.add(client);
+            ChatServer.updateReadInterest(client);
+        }
+        return false;
+    }
+
+    private void flush(Client client) {
+        boolean close = false;
+
+        synchronized (client) {
+            SelectionKey key = client.key;
+            try {
+                while (client.writing != null || !client.controlLane.isEmpty() || !client.bulkLane.isEmpty()) {
+                    // Gather in send order: the unfinished frame, then control, then bulk
+                    int count = 0;
+                    if (client.writing != null) {
+                        count = gatherFrame(client.writing, count);
+                    }
+                    for (OutboundFrame frame : client.controlLane) {
+                        count = gatherFrame(frame, count);
+                    }
+                    for (OutboundFrame frame : client.bulkLane) {
+                        count = gatherFrame(frame, count);
+                    }
+
+                    long requested = 0;
+                    for (int i = 0; i < count; i++) {
+                        requested += gather[i].remaining();
+                    }
+                    long written = client.socketChannel.write(gather, 0, count);
+                    client.outboundBytes -= written;
+                    Arrays.fill(gather, 0, count, null);
+
+                    boolean full = written < requested;
+                    if (client.writing != null && client.writing.isWritten()) {
+                        completed(client.writing);
+                        client.writing = null;
+                    }
+                    if (client.writing == null) {
+                        retire(client, client.controlLane, full);
+                    }
+                    if (client.writing == null && client.controlLane.isEmpty()) {
+                        retire(client, client.bulkLane, full);
+                    }
+
+                    if (full) {
+                        // Socket buffer is full; finish on OP_WRITE
+                        if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                            outboundStalls.increment();
+                            key.interestOpsOr(SelectionKey.OP_WRITE);
+
+                            OutboundStallEvent stall = new OutboundStallEvent();
+                            if (stall.isEnabled()) {
+                                stall.begin();
+                                stall.client = client.id;
+                                stall.queuedBytes = client.outboundBytes;
+                                client.stall = stall;
+                            }
+                        }
+                        return;
+                    }
+                }
+
+                if (key != null && key.isValid()) {
+                    key.interestOpsAnd(~SelectionKey.OP_WRITE);
+                }
+                if (client.stall != null) {
+                    client.stall.commit();
+                    client.stall = null;
+                }
+            } catch (IOException | CancelledKeyException e) {
+                // The command stage cleans up once it sees the close
+                client.stall = null;
+                client.writing = null;
+                client.controlLane.clear();
+                client.bulkLane.clear();
+                client.outboundBytes = 0;
+                client.eof = true;
+            }
+
+            client.flushRequested = false;
+            outboundLatency.record(System.nanoTime() - client.flushRequestedAt);
+            close = client.closeAfterFlush;
+        }
+
+        if (close) {
+            try {
+                client.socketChannel.close();
+            } catch (IOException ie) {
+                System.out.println(ie);
+            }
+        } else if (client.eof) {
+            ChatServer.updateReadInterest(client);
+            pump(client);
+        }
+    }
+
+    private int gatherFrame(OutboundFrame frame, int count) {
+        for (ByteBuffer part : frame.parts) {
+            if (count == gather.length) {
+                break;
+            }
+            if (part.hasRemaining()) {
+                gather[count++] = part;
+            }
+        }
+        return count;
+    }
+
+    // Drops the written frames at the head of the lane. When the socket filled up,
+    // the next frame is pinned as writing so no other frame can cut into it.
+    private void retire(Client client, ArrayDeque<OutboundFrame> lane, boolean full) {
+        while (!lane.isEmpty() && lane.peek().isWritten()) {
+            completed(lane.poll());
+        }
+        if (full && !lane.isEmpty()) {
+            client.writing = lane.poll();
+        }
+    }
+
+    private void completed(OutboundFrame frame) {
+        long now = System.nanoTime();
+        long waited = now - frame.queuedAt;
+        if (frame.lane == OutboundFrame.BULK) {
+            bulkLaneLatency.record(waited);
+        } else {
+            controlLaneLatency.record(waited);
+        }
+        if (frame.trace != null) {
+            traceWrite.record(waited);
+            traceTotal.record(now - frame.trace.readAt);
+        }
+    }
+}
+
+// Outbound Deflate state shared by every connection that negotiated the same
+// dictionary. Each frame is compressed on its own (reset + preset dictionary),
+// so a broadcast is compressed once per context instead of once per recipient.
+//
+// Wire format after "/compress": a 4-byte big-endian length followed by raw
+// Deflate data with the trailing 00 00 FF FF sync marker stripped. The peer
+// resets its Inflater, sets the same dictionary and appends the marker back.
+class CompressionContext {
+    static final byte[] DEFAULT_DICTIONARY = ("OK\nERROR\nBYE\nJOINED LEFT NEWNICK PRIVATE "
+            + "MERGE IN PROGRESS - Users from  are joining  through a merge request"
+            + " the and you that is to of in it for on with MESSAGE ").getBytes(StandardCharsets.UTF_8);
+
+    static private final LongAdder frames = Metrics.counter("compress.frames");
+    static private final LongAdder cpuNanos = Metrics.counter("compress.cpuNanos");
+    static private final LongAdder inputBytes = Metrics.counter("compress.inputBytes");
+    static private final LongAdder outputBytes = Metrics.counter("compress.outputBytes");
+
+    final byte[] dictionary;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private byte[] output = new byte[1024];
+
+    // Last compressed broadcast, reused for every recipient sharing this context
+    private long cachedBroadcast = -1;
+    private ByteBuffer cachedFrame;
+
+    CompressionContext(byte[] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    // Returns a read-only frame for the encoded line given as parts; broadcastId < 0 disables caching.
+    // Synchronized because fan-out workers share contexts.
+    synchronized ByteBuffer frame(ByteBuffer[] parts, long broadcastId) {
+        if (broadcastId >= 0 && broadcastId == cachedBroadcast) {
+            return cachedFrame;
+        }
+
+        long start = System.nanoTime();
+        int size = 0;
+        for (ByteBuffer part : parts) {
+            size += part.remaining();
+        }
+        byte[] input = new byte[size];
+        int offset = 0;
+        for (ByteBuffer part : parts) {
+            int length = part.remaining();
+            part.duplicate().get(input, offset, length);
+            offset += length;
+        }
+
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(input);
+
+        int length = 4;
+        while (true) {
+            int n = deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+            length += n;
+            if (length < output.length) {
+                break;
+            }
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+
+        // Strip the sync marker, the peer appends it back before inflating
+        length -= 4;
+        int payload = length - 4;
+        output[0] = (byte) (payload >>> 24);
+        output[1] = (byte) (payload >>> 16);
+        output[2] = (byte) (payload >>> 8);
+        output[3] = (byte) payload;
+        ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOf(output, length)).asReadOnlyBuffer();
+
+        cpuNanos.add(System.nanoTime() - start);
+        frames.increment();
+        inputBytes.add(input.length);
+        outputBytes.add(length);
+
+        if (broadcastId >= 0) {
+            cachedBroadcast = broadcastId;
+            cachedFrame = frame;
+        }
+        return frame;
+    }
+}
+
+// A token bucket limit in GCRA form. The bucket state is a single long owned by
+// the limited object: the time at which the bucket would be full again. Charging
+// is arithmetic on that value, so limiters need no allocation and no side maps.
+class RateLimit {
+    static final long REJECT = Long.MIN_VALUE;
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+
+    RateLimit(long perSecond, long burst) {
+        this.nanosPerToken = perSecond <= 0 ? 0 : Math.max(1, 1_000_000_000L / perSecond);
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+    }
+
+    // Returns the bucket state after taking tokens, or REJECT if they are not available.
+    // A full bucket always admits, so a request larger than the burst cannot starve.
+    long charge(long state, long now, long tokens) {
+        if (nanosPerToken == 0) {
+            return state;
+        }
+
+        long start = Math.max(state, now);
+        long next = start + nanosPerToken * tokens;
+        if (next - now > burstNanos && start > now) {
+            return REJECT;
+        }
+        return next;
+    }
+}
+
+// Worker threads that deliver broadcasts for very large rooms. Each member of
+// a parallel room belongs to one worker (by connection id), and that worker
+// applies membership changes and deliveries in the order the event loop queued
+// them, so every recipient still sees each sender's messages in order.
+class FanoutPool {
+    private final ExecutorService[] workers;
+
+    FanoutPool(int size) {
+        workers = new ExecutorService[size];
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            workers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "fanout-" + index);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    int size() {
+        return workers.length;
+    }
+
+    int workerFor(Client client) {
+        return Math.floorMod(client.id, workers.length);
+    }
+
+    void execute(int worker, Runnable task) {
+        workers[worker].execute(task);
+    }
+}
+
+// Hashed timer wheel of idle deadlines, intrusive on Client so scheduling and
+// cancelling allocate nothing. Deadlines past the wheel span are clamped to the
+// last slot; callers re-check the real condition when a client comes due.
+class IdleTimerWheel {
+    private final long tickMs;
+    private final Client[] slots;
+    private final int mask;
+    private long currentTick;
+    private int size;
+
+    IdleTimerWheel(long tickMs, long spanMs, long now) {
+        int wanted = (int) Math.min(1 << 20, spanMs / tickMs + 2);
+        int length = Integer.highestOneBit(Math.max(2, wanted - 1)) << 1;
+
+        this.tickMs = tickMs;
+        this.slots = new Client[length];
+        this.mask = length - 1;
+        this.currentTick = now / tickMs;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void schedule(Client client, long deadline) {
+        remove(client);
+
+        // Round up, and never schedule into the slot currently being expired
+        long tick = (deadline + tickMs - 1) / tickMs;
+        tick = Math.max(tick, currentTick + 1);
+        tick = Math.min(tick, currentTick + mask);
+
+        int slot = (int) (tick & mask);
+        Client head = slots[slot];
+        client.wheelSlot = slot;
+        client.wheelPrev = null;
+        client.wheelNext = head;
+        if (head != null) {
+            head.wheelPrev = client;
+        }
+        slots[slot] = client;
+        size++;
+    }
+
+    void remove(Client client) {
+        if (client.wheelSlot < 0) {
+            return;
+        }
+
+        if (client.wheelPrev != null) {
+            client.wheelPrev.wheelNext = client.wheelNext;
+        } else {
+            slots[client.wheelSlot] = client.wheelNext;
+        }
+        if (client.wheelNext != null) {
+            client.wheelNext.wheelPrev = client.wheelPrev;
+        }
+
+        client.wheelPrev = null;
+        client.wheelNext = null;
+        client.wheelSlot = -1;
+        size--;
+    }
+
+    long millisUntilNextTick(long now) {
+        return Math.max(1, (currentTick + 1) * tickMs - now);
+    }
+
+    // Advances the wheel to now and moves every client whose slot came due into due
+    void advance(long now, List<Client> due) {
+        long target = now / tickMs;
+
+        // After a long stall a single lap visits every slot
+        if (target - currentTick > slots.length) {
+            currentTick = target - slots.length;
+        }
+
+        while (currentTick < target) {
+            currentTick++;
+            int slot = (int) (currentTick & mask);
+
+            Client client = slots[slot];
+            slots[slot] = null;
+            while (client != null) {
+                Client next = client.wheelNext;
+                client.wheelPrev = null;
+                client.wheelNext = null;
+                client.wheelSlot = -1;
+                size--;
+                due.add(client);
+                client = next;
+            }
+        }
+    }
+}
+
+// Links to the other ChatServer processes on this port (chat.reusePort lets
+// the kernel spread accepts over them). Every process listens on a Unix domain
+// socket <dir>/chat-<port>-<pid>.sock and connects to each other one it finds
+// in dir, so a pair of processes has one link each way. The command stage
+// publishes the chat lines said here to every outbound link; what arrives on
+// an inbound link becomes a PEER event, fanned out to the local members only
+// and never passed on. Each outbound link has a bounded queue and its own
+// writer thread, so a slow peer loses lines instead of holding anyone up;
+// inbound readers wait for room in the command queue.
+//
+// Frames are [int length][short room length][room][short nick length][nick][body].
+class PeerLinks extends Thread {
+    static private final int MAX_FRAME = 1024 * 1024;
+
+    static private final LongAdder sent = Metrics.counter("peer.sent");
+    static private final LongAdder received = Metrics.counter("peer.received");
+    static private final LongAdder dropped = Metrics.counter("peer.dropped");
+
+    // One outbound link: writes what publish queued, flushing when it runs dry
+    private class Link extends Thread {
+        final Path path;
+        final SocketChannel channel;
+        final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        Link(Path path, SocketChannel channel) {
+            super("peer-out " + path.getFileName());
+            this.path = path;
+            this.channel = channel;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024)) {
+                while (true) {
+                    byte[] frame = queue.take();
+                    do {
+                        out.write(frame);
+                        sent.increment();
+                    } while ((frame = queue.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Peer link to " + path.getFileName() + " closed: " + e);
+            }
+            outbound.remove(this);
+            linked.remove(path);
+        }
+    }
+
+    private final Path dir;
+    private final int port;
+    private final Path own;
+    private final long scanMs;
+    private final int queueCapacity;
+    private final BoundedQueue<InboundEvent> commandQueue;
+    private final ServerSocketChannel listener;
+    private final List<Link> outbound = new CopyOnWriteArrayList<>();
+    private final Set<Path> linked = ConcurrentHashMap.newKeySet();
+    private final AtomicLong inbound = new AtomicLong();
+
+    PeerLinks(Path dir, int port, long scanMs, int queueCapacity, BoundedQueue<InboundEvent> commandQueue)
+            throws IOException {
+        super("peer-links");
+        this.dir = dir;
+        this.port = port;
+        this.own = dir.resolve("chat-" + port + "-" + ProcessHandle.current().pid() + ".sock");
+        this.scanMs = scanMs;
+        this.queueCapacity = queueCapacity;
+        this.commandQueue = commandQueue;
+        setDaemon(true);
+
+        Files.createDirectories(dir);
+        Files.deleteIfExists(own);
+        listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        listener.bind(UnixDomainSocketAddress.of(own));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(own);
+            } catch (IOException e) {
+                // Peers drop the stale path once this pid is gone
+            }
+        }));
+    }
+
+    int outboundLinks() {
+        return outbound.size();
+    }
+
+    long inboundLinks() {
+        return inbound.get();
+    }
+
+    // Called by the command stage for every chat line said in this process
+    void publish(String room, String nick, byte[] body) {
+        if (outbound.isEmpty()) {
+            return;
+        }
+
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] nickBytes = nick.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + roomBytes.length + 2 + nickBytes.length + body.length;
+        if (roomBytes.length > 0xffff || nickBytes.length > 0xffff || length > MAX_FRAME) {
+            dropped.increment();
+            return;
+        }
+
+        byte[] frame = ByteBuffer.allocate(4 + length).putInt(length)
+                .putShort((short) roomBytes.length).put(roomBytes)
+                .putShort((short) nickBytes.length).put(nickBytes)
+                .put(body).array();
+        for (Link link : outbound) {
+            if (!link.queue.offer(frame)) {
+                dropped.increment();
+            }
+        }
+    }
+
+    // Accepts inbound links, and every scanMs looks for peers not linked yet
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open()) {
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+            long nextScan = 0;
+
+            while (true) {
+                long now = System.nanoTime() / 1_000_000;
+                if (now >= nextScan) {
+                    scan();
+                    nextScan = now + scanMs;
+                }
+
+                selector.select(Math.max(1, nextScan - now));
+                selector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = listener.accept()) != null) {
+                    channel.configureBlocking(true);
+                    Thread reader = new Thread(readLoop(channel), "peer-in " + inbound.incrementAndGet());
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Peer links stopped: " + e);
+        }
+    }
+
+    private void scan() {
+        String prefix = "chat-" + port + "-";
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir, prefix + "*.sock")) {
+            for (Path path : paths) {
+                if (path.equals(own) || linked.contains(path)) {
+                    continue;
+                }
+
+                String name = path.getFileName().toString();
+                long pid;
+                try {
+                    pid = Long.parseLong(name.substring(prefix.length(), name.length() - ".sock".length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (ProcessHandle.of(pid).isEmpty()) {
+                    // Left behind by a process that did not exit cleanly
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+
+                try {
+                    SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+                    Link link = new Link(path, channel);
+                    linked.add(path);
+                    outbound.add(link);
+                    link.start();
+                    System.out.println("Linked to peer " + name);
+                } catch (IOException e) {
+                    // Not listening yet; try again on the next scan
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Peer scan of " + dir + " failed: " + e);
+        }
+    }
+
+    // Hands each frame to the command stage, waiting while its queue is full
+    private Runnable readLoop(SocketChannel channel) {
+        return () -> {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024))) {
+                while (true) {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_FRAME) {
+                        throw new IOException("bad frame length " + length);
+                    }
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    received.increment();
+
+                    InboundEvent event = new InboundEvent(InboundEvent.PEER, null, frame, System.nanoTime());
+                    event.queuedAt = event.readAt;
+                    while (!commandQueue.offer(event)) {
+                        LockSupport.parkNanos(100_000);
+                    }
+                    ChatServer.signalCommandStage();
+                }
+            } catch (EOFException e) {
+                // The peer went away
+            } catch (IOException e) {
+                System.err.println("Peer link closed: " + e);
+            }
+            inbound.decrementAndGet();
+        };
+    }
+}
+
+public class ChatServer {
+    // Shared prefix of relayed chat lines; frames are [prefix, encodedNick, body]
+    static private final ByteBuffer MESSAGE_PREFIX = ByteBuffer.wrap(
+            "MESSAGE ".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    // Decoder for incoming text -- assume UTF-8
+    static private final Charset charset = Charset.forName("UTF8");
+    static private final CharsetDecoder decoder = charset.newDecoder();
+
+    static private final Map<String, Client> clients = new HashMap<>();
+    static private final Map<String, ChatRoom> chatRooms = new HashMap<>();
+    static private final List<ChatRoom> roomsByIndex = new ArrayList<>();
+    static private final ArrayDeque<Integer> freeRoomIndexes = new ArrayDeque<>();
+
+    // "/to <room> <text>" is a chat line for one of the sender's rooms
+    static private final byte[] TO_COMMAND = "/to ".getBytes(StandardCharsets.UTF_8);
+
+    // Compression contexts, one per distinct negotiated dictionary
+    static private final Map<ByteBuffer, CompressionContext> compressionContexts = new HashMap<>();
+    static private final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    static private long broadcastSeq = 0;
+
+    // Heartbeat: PING after idleTimeoutMs without input, evict pingTimeoutMs later
+    static private final long IDLE_TIMEOUT_MS = Long.getLong("chat.idleTimeoutMs", 60_000);
+    static private final long PING_TIMEOUT_MS = Long.getLong("chat.pingTimeoutMs", 15_000);
+    static private final long TIMER_TICK_MS = Long.getLong("chat.timerTickMs", 250);
+    static private final IdleTimerWheel idleTimers = new IdleTimerWheel(TIMER_TICK_MS,
+            Math.max(IDLE_TIMEOUT_MS, PING_TIMEOUT_MS), now());
+    static private final List<Client> dueClients = new ArrayList<>();
+
+    // Rate limits; a rate of 0 disables that limit
+    static private final RateLimit LINE_LIMIT = new RateLimit(Long.getLong("chat.rate.linesPerSec", 50),
+            Long.getLong("chat.rate.lineBurst", 100));
+    static private final RateLimit BYTE_LIMIT = new RateLimit(Long.getLong("chat.rate.bytesPerSec", 64 * 1024),
+            Long.getLong("chat.rate.byteBurst", 128 * 1024));
+    static private final RateLimit ROOM_LIMIT = new RateLimit(Long.getLong("chat.rate.roomBroadcastsPerSec", 500),
+            Long.getLong("chat.rate.roomBurst", 1000));
+    static private final RatePolicy RATE_POLICY = RatePolicy.valueOf(
+            System.getProperty("chat.rate.policy", "pause").toUpperCase());
+    static private final int RATE_QUEUE_LIMIT = Integer.getInteger("chat.rate.queueLimitBytes", 64 * 1024);
+    static private final List<Client> throttledClients = new ArrayList<>();
+
+    static private final LongAdder linesLimited = Metrics.counter("rate.linesLimited");
+    static private final LongAdder bytesLimited = Metrics.counter("rate.bytesLimited");
+    static private final LongAdder roomLimited = Metrics.counter("rate.roomLimited");
+    static private final LongAdder rateDropped = Metrics.counter("rate.dropped");
+    static private final LongAdder readsPaused = Metrics.counter("rate.readsPaused");
+
+    // Admission control and socket tuning for accepted connections
+    static private final int ACCEPT_BATCH = Integer.getInteger("chat.accept.batch", 64);
+    static private final long ACCEPT_BACKOFF_MS = Long.getLong("chat.accept.backoffMs", 50);
+    static private final int MAX_CONNECTIONS = Integer.getInteger("chat.maxConnections", 100_000);
+    static private final int MAX_CONNECTIONS_PER_ADDRESS = Integer.getInteger("chat.maxConnectionsPerAddress", 1_000);
+    static private final int BACKLOG = Integer.getInteger("chat.backlog", 1024);
+    static private final boolean TCP_NODELAY = Boolean.parseBoolean(System.getProperty("chat.tcpNoDelay", "true"));
+    static private final int SEND_BUFFER = Integer.getInteger("chat.sendBuffer", 0);
+    static private final int RECEIVE_BUFFER = Integer.getInteger("chat.receiveBuffer", 0);
+    static private final boolean LOG_CONNECTIONS = Boolean.parseBoolean(System.getProperty("chat.logConnections", "true"));
+
+    // Also listen on this Unix domain socket, for gateways on the same host;
+    // access is up to the file's permissions, so no per-address cap applies
+    static private final String UNIX_SOCKET = System.getProperty("chat.unixSocket");
+    // Guarded by connectionsPerAddress: the acceptor admits, the command stage releases
+    static private final Map<InetAddress, Integer> connectionsPerAddress = new HashMap<>();
+    static private int openConnections = 0;
+
+    // The acceptor numbers connections, the command stage gateway sessions
+    static private final AtomicInteger nextClientId = new AtomicInteger();
+
+    static private final LongAdder accepted = Metrics.counter("accept.accepted");
+    static private final LongAdder rejectedFull = Metrics.counter("accept.rejectedFull");
+    static private final LongAdder rejectedAddress = Metrics.counter("accept.rejectedPerAddress");
+    static private final LongAdder acceptFailures = Metrics.counter("accept.failures");
+
+    // Rooms at or above the threshold fan out on worker threads; they go back to
+    // inline delivery below half of it so a room on the edge does not flap
+    static private final int PARALLEL_FANOUT_THRESHOLD = Integer.getInteger("chat.fanout.parallelThreshold", 50_000);
+    static private final FanoutPool fanout = new FanoutPool(Integer.getInteger("chat.fanout.workers",
+            Runtime.getRuntime().availableProcessors()));
+    static private int parallelRooms = 0;
+
+    // Per-connection cap on output the socket has not accepted yet
+    static private final long MAX_OUTBOUND_BYTES = Long.getLong("chat.outbound.maxBytes", 4 * 1024 * 1024);
+
+    // Pipeline: the main thread accepts, IoLoops read and write sockets, and the
+    // command stage -- the only thread that touches clients and rooms -- runs the
+    // commands. Lines reach it through a bounded queue; a full queue stops reads.
+    static private final int IO_THREADS = Integer.getInteger("chat.io.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    static private final BoundedQueue<InboundEvent> commandQueue = new BoundedQueue<>(
+            Integer.getInteger("chat.stage.queueCapacity", 65_536));
+    static private IoLoop[] ioLoops;
+    static private volatile Thread commandThread;
+    static private volatile boolean commandParked = false;
+    static private long nextMaintenance = 0;
+
+    // Presence changes are coalesced per room for this long; 0 announces each at once
+    static private final long PRESENCE_WINDOW_MS = Long.getLong("chat.presence.windowMs", 100);
+    static private final ArrayDeque<ChatRoom> presenceRooms = new ArrayDeque<>();
+    static private long presenceBatches = 0;
+
+    // Sessions for /resume: detached ones keep their nickname for chat.session.ttlMs,
+    // and every room keeps its last chat.session.retain broadcasts for replay
+    static private final long SESSION_TTL_MS = Long.getLong("chat.session.ttlMs", 120_000);
+    static private final int SESSION_RETAIN = Integer.getInteger("chat.session.retain", 256);
+    static private final Map<String, Session> sessions = new HashMap<>();
+    static private final Map<String, Session> reservedNicks = new HashMap<>();
+    static private final ArrayDeque<Session> detachedSessions = new ArrayDeque<>();
+    static private final SecureRandom tokens = new SecureRandom();
+
+    // Offline mailboxes for /priv, enabled by chat.mailbox.dir
+    static private final String MAILBOX_DIR = System.getProperty("chat.mailbox.dir");
+    static private Mailboxes mailboxes;
+
+    static private final LongAdder mailboxStored = Metrics.counter("mailbox.stored");
+    static private final LongAdder mailboxRejected = Metrics.counter("mailbox.rejected");
+    static private final LongAdder mailboxDelivered = Metrics.counter("mailbox.delivered");
+
+    // /search over the newest chat.search.maxDocs chat lines; 0 turns it off
+    static private final int SEARCH_MAX_DOCS = Integer.getInteger("chat.search.maxDocs", 1_000_000);
+    static private SearchIndex search;
+
+    // /list and /who stream chat.directory.pageSize lines per frame, one page
+    // per listing each turn of the command stage, and wait while the client
+    // has more than a quarter of its outbound cap queued
+    static private final int DIRECTORY_PAGE = Integer.getInteger("chat.directory.pageSize", 256);
+    static private final RoomDirectory directory = new RoomDirectory();
+    static private final ArrayDeque<DirectoryListing> listings = new ArrayDeque<>();
+    static private final LongAdder directoryPages = Metrics.counter("directory.pages");
+
+    // Filtering: /ignore lists of at most chat.ignore.max ids, /mute for the
+    // nicknames in chat.moderators (comma separated), and dropping a line its
+    // sender already said in the room in the last chat.dedup.windowMs (0 turns
+    // it off), if it has at least chat.dedup.minBytes bytes, so short replies
+    // can repeat
+    static private final int MAX_IGNORED = Integer.getInteger("chat.ignore.max", 256);
+    static private final Set<String> MODERATORS = new HashSet<>(
+            Arrays.asList(System.getProperty("chat.moderators", "").split(",")));
+    static private final long DEDUP_WINDOW_MS = Long.getLong("chat.dedup.windowMs", 2_000);
+    static private final int DEDUP_MIN_BYTES = Integer.getInteger("chat.dedup.minBytes", 16);
+    static private final int DEDUP_SLOTS = Integer.getInteger("chat.dedup.slots", 64);
+
+    static private final LongAdder ignoredDeliveries = Metrics.counter("filter.ignored");
+    static private final LongAdder mutedLines = Metrics.counter("filter.muted");
+    static private final LongAdder duplicateLines = Metrics.counter("filter.duplicates");
+
+    // Several processes on one port: chat.reusePort binds with SO_REUSEPORT,
+    // and chat.cluster.dir is where the processes find each other's
+    // PeerLinks sockets to share room traffic. Nicknames, /priv, /list, /who
+    // and sessions stay per process.
+    static private final boolean REUSE_PORT = Boolean.getBoolean("chat.reusePort");
+    static private final String CLUSTER_DIR = System.getProperty("chat.cluster.dir");
+    static private PeerLinks peers;
+
+    // Gateways: /gateway needs chat.gateway.secret, and then carries up to
+    // chat.gateway.maxSessions users
+    static private final String GATEWAY_SECRET = System.getProperty("chat.gateway.secret");
+    static private final int MAX_GATEWAY_SESSIONS = Integer.getInteger("chat.gateway.maxSessions", 200_000);
+    static private int gatewayConnections = 0;
+    static private int gatewaySessions = 0;
+    static private final LongAdder gatewayFrames = Metrics.counter("gateway.batchedFrames");
+
+    static private final LongAdder sessionsResumed = Metrics.counter("session.resumed");
+    static private final LongAdder sessionsExpired = Metrics.counter("session.expired");
+    static private final LongAdder replayedBroadcasts = Metrics.counter("session.replayed");
+    static private final LongAdder replayGaps = Metrics.counter("session.gaps");
+
+    static private final LongAdder presenceEvents = Metrics.counter("presence.events");
+    static private final LongAdder presenceDigests = Metrics.counter("presence.digests");
+
+    static private final LatencyHistogram queueWaitLatency = Metrics.histogram("stage.queueWait");
+    static private final LatencyHistogram executeLatency = Metrics.histogram("stage.execute");
+
+    // Tracing: 1 in chat.trace.every lines (0 turns it off; a moderator can
+    // change it with /trace) is followed from the read to each recipient's
+    // socket. Per stage: trace.frame (read to command queue), trace.queue
+    // (waiting there), trace.execute (running it, inline fan-out included),
+    // and per recipient trace.enqueue (since dispatch), trace.write (in the
+    // outbound queue) and trace.total (read to written). Lines held back by
+    // the rate limits are not followed past the command queue.
+    static private volatile int traceEvery = Integer.getInteger("chat.trace.every", 0);
+    static private MessageTrace tracing;   // the sampled line the command stage is running
+    static private final LongAdder tracedLines = Metrics.counter("trace.lines");
+    static private final LatencyHistogram traceFrame = Metrics.histogram("trace.frame");
+    static private final LatencyHistogram traceQueue = Metrics.histogram("trace.queue");
+    static private final LatencyHistogram traceExecute = Metrics.histogram("trace.execute");
+    static private final LatencyHistogram traceEnqueue = Metrics.histogram("trace.enqueue");
+
+    static private final LongAdder parallelBroadcasts = Metrics.counter("fanout.parallelBroadcasts");
+    static private final LongAdder inlineBroadcasts = Metrics.counter("fanout.inlineBroadcasts");
+    static private final LongAdder relayedLines = Metrics.counter("relay.lines");
+    static private final LongAdder relayedBytes = Metrics.counter("relay.bodyBytes");
+    static private final LongAdder outboundDropped = Metrics.counter("outbound.dropped");
+
+    static private final LongAdder pingsSent = Metrics.counter("idle.pingsSent");
+    static private final LongAdder idleEvictions = Metrics.counter("idle.evicted");
+
+    static private final LongAdder deliveredRawBytes = Metrics.counter("compress.deliveredRawBytes");
+    static private final LongAdder deliveredWireBytes = Metrics.counter("compress.deliveredWireBytes");
+
+    static {
+        Metrics.gauge("accept.openConnections", () -> openConnections);
+        Metrics.gauge("idle.tracked", () -> idleTimers.size());
+        Metrics.gauge("fanout.parallelThreshold", () -> PARALLEL_FANOUT_THRESHOLD);
+        Metrics.gauge("fanout.workers", () -> fanout.size());
+        Metrics.gauge("fanout.parallelRooms", () -> parallelRooms);
+        Metrics.gauge("rate.throttledClients", () -> throttledClients.size());
+        Metrics.gauge("compress.contexts", () -> compressionContexts.size());
+        Metrics.gauge("presence.windowMs", () -> PRESENCE_WINDOW_MS);
+        Metrics.gauge("session.active", () -> sessions.size());
+        Metrics.gauge("directory.rooms", () -> directory.size());
+        Metrics.gauge("directory.listings", () -> listings.size());
+        Metrics.gauge("mailbox.nicknames", () -> mailboxes == null ? 0 : mailboxes.mailboxes());
+        Metrics.gauge("mailbox.messages", () -> mailboxes == null ? 0 : mailboxes.messages());
+        Metrics.gauge("mailbox.diskBytes", () -> mailboxes == null ? 0 : mailboxes.bytes());
+        Metrics.gauge("session.detached", () -> reservedNicks.size());
+        Metrics.gauge("presence.pendingRooms", () -> presenceRooms.size());
+        Metrics.gauge("stage.ioThreads", () -> IO_THREADS);
+        Metrics.gauge("trace.every", () -> traceEvery);
+        Metrics.gauge("gateway.connections", () -> gatewayConnections);
+        Metrics.gauge("gateway.sessions", () -> gatewaySessions);
+        Metrics.gauge("process.pid", () -> ProcessHandle.current().pid());
+        Metrics.gauge("process.cpuMillis", () -> ProcessHandle.current().info().totalCpuDuration()
+                .map(Duration::toMillis).orElse(-1L));
+        Metrics.gauge("peer.outboundLinks", () -> peers == null ? 0 : peers.outboundLinks());
+        Metrics.gauge("peer.inboundLinks", () -> peers == null ? 0 : peers.inboundLinks());
+        Metrics.gauge("stage.commandQueueCapacity", () -> commandQueue.capacity());
+        Metrics.gauge("stage.commandQueueDepth", () -> commandQueue.size());
+        Metrics.gauge("stage.flushQueueDepth", () -> {
+            long depth = 0;
+            for (IoLoop io : ioLoops) {
+                depth += io.pendingFlushes();
+            }
+            return depth;
+        });
+        Metrics.gauge("compress.savedBytesPerCpuMs", () -> {
+            long saved = deliveredRawBytes.sum() - deliveredWireBytes.sum();
+            long cpuMs = Math.max(1, Metrics.value("compress.cpuNanos") / 1_000_000);
+            return saved / cpuMs;
+        });
+    }
+
+    static public void main(String args[]) throws Exception {
+
+        // Parse port from command line
+        int port = Integer.parseInt(args[0]);
+
+        try {
+            // Instead of creating a ServerSocket, create a ServerSocketChannel
+            ServerSocketChannel ssc = ServerSocketChannel.open();
+
+            // Set it to non-blocking, so we can use select
+            ssc.configureBlocking(false);
+
+            // Receive buffer sizes above 64K must be set before listening to take effect
+            ssc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (REUSE_PORT) {
+                if (!ssc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    System.err.println("SO_REUSEPORT is not supported here");
+                    return;
+                }
+                ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (RECEIVE_BUFFER > 0) {
+                ssc.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+            }
+
+            // Bind the channel to the listening port
+            InetSocketAddress isa = new InetSocketAddress(port);
+            ssc.bind(isa, BACKLOG);
+
+            // Create a new Selector for selecting
+            Selector selector = Selector.open();
+
+            // Register the ServerSocketChannel, so we can listen for incoming connections
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Listening on port " + port);
+
+            if (UNIX_SOCKET != null) {
+                Path path = Path.of(UNIX_SOCKET);
+                Files.deleteIfExists(path);
+                ServerSocketChannel unix = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                unix.configureBlocking(false);
+                unix.bind(UnixDomainSocketAddress.of(path), BACKLOG);
+                unix.register(selector, SelectionKey.OP_ACCEPT);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException ie) {
+                        // The next start removes it
+                    }
+                }));
+                System.out.println("Listening on " + UNIX_SOCKET);
+            }
+
+            if (SEARCH_MAX_DOCS > 0) {
+                search = new SearchIndex(SEARCH_MAX_DOCS, Integer.getInteger("chat.search.flushDocs", 4096),
+                        Integer.getInteger("chat.search.maxResults", 20),
+                        Integer.getInteger("chat.search.queueCapacity", 65_536));
+                search.start();
+            }
+
+            if (MAILBOX_DIR != null) {
+                mailboxes = new Mailboxes(new File(MAILBOX_DIR),
+                        Long.getLong("chat.mailbox.maxBytes", 64L * 1024 * 1024),
+                        Long.getLong("chat.mailbox.segmentBytes", 4L * 1024 * 1024),
+                        Integer.getInteger("chat.mailbox.maxPerNickname", 100),
+                        Integer.getInteger("chat.mailbox.maxMessageBytes", 8192),
+                        Long.getLong("chat.mailbox.ttlMs", 24L * 60 * 60 * 1000));
+                System.out.println("Mailboxes in " + MAILBOX_DIR + ": " + mailboxes.messages() + " messages");
+            }
+
+            if (CLUSTER_DIR != null) {
+                peers = new PeerLinks(Path.of(CLUSTER_DIR), port, Long.getLong("chat.cluster.scanMs", 1000),
+                        Integer.getInteger("chat.cluster.queueCapacity", 65_536), commandQueue);
+                peers.start();
+                System.out.println("Sharing rooms with the processes in " + CLUSTER_DIR);
+            }
+
+            ioLoops = new IoLoop[IO_THREADS];
+            for (int i = 0; i < ioLoops.length; i++) {
+                ioLoops[i] = new IoLoop(i, commandQueue);
+                ioLoops[i].start();
+            }
+            Thread commandStage = new Thread(ChatServer::runCommandStage, "command");
+            commandStage.start();
+
+            while (true) {
+                // See if we've had any incoming connections; reads and writes
+                // happen on the IoLoops
+                int num = selector.select();
+
+                // If we don't have any activity, loop around and wait again
+                if (num == 0) {
+                    continue;
+                }
+
+                // Get the keys corresponding to the activity that has been
+                // detected, and process them one by one
+                Set<SelectionKey> keys = selector.selectedKeys();
+                Iterator<SelectionKey> it = keys.iterator();
+                while (it.hasNext()) {
+                    // Get a key representing one of bits of I/O activity
+                    SelectionKey key = it.next();
+
+                    if (key.isValid() && key.isAcceptable()) {
+
+                        // Incoming connections. Accept a bounded batch per iteration
+                        // so a reconnect storm cannot starve existing clients
+                        acceptConnections((ServerSocketChannel) key.channel());
+                    }
+                }
+
+                // We remove the selected keys, because we've dealt with them.
+                keys.clear();
+            }
+        } catch (IOException ie) {
+            System.err.println(ie);
+        }
+    }
+
+    // A failure here only costs the socket it happened on; a failing accept()
+    // (usually out of descriptors) backs off instead of spinning on the backlog
+    static private void acceptConnections(ServerSocketChannel ssc) {
+        for (int i = 0; i < ACCEPT_BATCH; i++) {
+            SocketChannel sc;
+            try {
+                sc = ssc.accept();
+            } catch (IOException ie) {
+                acceptFailures.increment();
+                System.err.println("Error accepting connection: " + ie);
+                try {
+                    Thread.sleep(ACCEPT_BACKOFF_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            if (sc == null) {
+                return;
+            }
+
+            try {
+                admit(sc);
+            } catch (IOException ie) {
+                acceptFailures.increment();
+                System.err.println("Error setting up connection: " + ie);
+                try {
+                    sc.close();
+                } catch (IOException ie2) {
+                    System.out.println(ie2);
+                }
+            }
+        }
+    }
+
+    static private void admit(SocketChannel sc) throws IOException {
+        SocketAddress remote = sc.getRemoteAddress();
+        InetAddress address = remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getAddress() : null;
+        boolean full;
+        boolean addressFull;
+        synchronized (connectionsPerAddress) {
+            full = openConnections >= MAX_CONNECTIONS;
+            addressFull = address != null
+                    && connectionsPerAddress.getOrDefault(address, 0) >= MAX_CONNECTIONS_PER_ADDRESS;
+            if (!full && !addressFull) {
+                if (address != null) {
+                    connectionsPerAddress.merge(address, 1, Integer::sum);
+                }
+                openConnections++;
+            }
+        }
+        if (full) {
+            rejectedFull.increment();
+            connectionEvent("rejected", -1, null, address);
+            rejectConnection(sc);
+            return;
+        }
+        if (addressFull) {
+            rejectedAddress.increment();
+            connectionEvent("rejected", -1, null, address);
+            rejectConnection(sc);
+            return;
+        }
+
+        Client client = new Client(null, sc);
+        client.remoteAddress = address;
+        client.admitted = true;
+        try {
+            if (LOG_CONNECTIONS) {
+                System.out.println("Got connection from " + describe(sc));
+            }
+
+            // Make sure to make it non-blocking, so we can use a selector on it.
+            sc.configureBlocking(false);
+            if (address != null) {
+                sc.setOption(StandardSocketOptions.TCP_NODELAY, TCP_NODELAY);
+            }
+            if (SEND_BUFFER > 0) {
+                sc.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+            }
+        } catch (IOException ie) {
+            // Reset before we got to it: give back its admission
+            releaseConnection(client);
+            throw ie;
+        }
+
+        // Hand it to an IoLoop, which registers it and tells the command stage
+        client.id = nextClientId.getAndIncrement();
+        client.lastActivity = now();
+        accepted.increment();
+        connectionEvent("accepted", client.id, null, address);
+
+        client.io = ioLoops[client.id % ioLoops.length];
+        client.io.register(client);
+    }
+
+    // For the connection log: a Unix domain channel has no Socket to print
+    static private String describe(SocketChannel sc) {
+        try {
+            return sc.getRemoteAddress() instanceof InetSocketAddress ? sc.socket().toString()
+                    : "Unix socket " + UNIX_SOCKET;
+        } catch (IOException ie) {
+            return sc.toString();
+        }
+    }
+
+    // Accepts, rejects and closes for a recording; nothing is built unless one wants them
+    static private void connectionEvent(String action, int id, String nickname, InetAddress address) {
+        ConnectionEvent event = new ConnectionEvent();
+        if (event.shouldCommit()) {
+            event.action = action;
+            event.client = id;
+            event.nickname = nickname;
+            event.address = address == null ? null : address.getHostAddress();
+            event.commit();
+        }
+    }
+
+    static private void rejectConnection(SocketChannel sc) {
+        try {
+            // Best effort; the socket is still blocking, but a fresh send buffer takes one line
+            sc.write(charset.encode("ERROR" + System.lineSeparator()));
+            sc.close();
+        } catch (IOException ie) {
+            System.err.println("Error rejecting connection: " + ie);
+        }
+    }
+
+    static private void releaseConnection(Client client) {
+        if (!client.admitted) {
+            return;
+        }
+
+        client.admitted = false;
+        synchronized (connectionsPerAddress) {
+            openConnections--;
+            if (client.remoteAddress != null) {
+                connectionsPerAddress.computeIfPresent(client.remoteAddress, (a, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+    }
+
+    // The command stage: runs every event in arrival order, and the idle and
+    // rate-limit maintenance at least once per timer tick
+    static private void runCommandStage() {
+        commandThread = Thread.currentThread();
+
+        while (true) {
+            InboundEvent event = commandQueue.poll();
+            if (event != null) {
+                try {
+                    handleEvent(event);
+                } catch (IOException ie) {
+                    System.err.println(ie);
+                } catch (RuntimeException e) {
+                    // Keep serving everyone else
+                    e.printStackTrace();
+                }
+            }
+
+            long now = now();
+            if (event == null || now >= nextMaintenance) {
+                expireIdleClients(now);
+                expireSessions(now);
+                expireMailboxes();
+                retryThrottledClients();
+                nextMaintenance = now + TIMER_TICK_MS;
+            }
+            if (!presenceRooms.isEmpty()) {
+                flushDuePresence(now);
+            }
+            boolean streamed = !listings.isEmpty() && continueListings();
+
+            if (event == null && !streamed) {
+                // Park until an IoLoop hands over work, the next tick or a presence digest is due
+                long wait = idleTimers.millisUntilNextTick(now());
+                if (!presenceRooms.isEmpty()) {
+                    wait = Math.min(wait, Math.max(1, presenceRooms.peek().presenceDueAt - now()));
+                }
+                commandParked = true;
+                if (commandQueue.isEmpty()) {
+                    LockSupport.parkNanos(wait * 1_000_000L);
+                }
+                commandParked = false;
+            }
+        }
+    }
+
+    // For the IoLoops: whether to follow the line just framed
+    static boolean sampleTrace() {
+        int every = traceEvery;
+        return every > 0 && ThreadLocalRandom.current().nextInt(every) == 0;
+    }
+
+    static void signalCommandStage() {
+        if (commandParked) {
+            LockSupport.unpark(commandThread);
+        }
+    }
+
+    static private void handleEvent(InboundEvent event) throws IOException {
+        Client client = event.client;
+        long start = System.nanoTime();
+        queueWaitLatency.record(start - event.queuedAt);
+        if (event.traced) {
+            tracedLines.increment();
+            traceFrame.record(event.queuedAt - event.readAt);
+            traceQueue.record(start - event.queuedAt);
+            tracing = new MessageTrace(event.readAt, start);
+        }
+
+        switch (event.kind) {
+            case InboundEvent.OPEN:
+                idleTimers.schedule(client, client.lastActivity + IDLE_TIMEOUT_MS);
+                break;
+            case InboundEvent.CLOSE:
+                if (!client.closed) {
+                    closeClient(client);
+                }
+                break;
+            case InboundEvent.PEER:
+                relayPeerMessage(event.line);
+                break;
+            default:
+                if (!client.closed) {
+                    handleLine(client, event);
+                }
+        }
+
+        long executed = System.nanoTime() - start;
+        executeLatency.record(executed);
+        if (tracing != null) {
+            traceExecute.record(executed);
+            tracing = null;
+        }
+    }
+
+    // Runs the line if the rate limits admit it, otherwise applies the policy
+    static private void handleLine(Client client, InboundEvent event) throws IOException {
+        byte[] line = event.line;
+
+        if (client.sessions != null && line.length > 0 && line[0] >= '0' && line[0] <= '9') {
+            gatewayLine(client, event);
+            return;
+        }
+
+        // Lines behind held ones, or behind a listing, wait their turn
+        if (client.throttled || client.listing != null) {
+            hold(client, event);
+            return;
+        }
+
+        if (admitLine(client, line, 0, line.length, System.nanoTime())) {
+            processLine(client, line, 0, line.length);
+            return;
+        }
+
+        // Holding a session's lines back cannot pause its gateway's reads
+        if (RATE_POLICY == RatePolicy.DROP || client.gateway != null) {
+            rateDropped.increment();
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        client.throttled = true;
+        throttledClients.add(client);
+        hold(client, event);
+    }
+
+    static private void hold(Client client, InboundEvent event) {
+        if (client.held == null) {
+            client.held = new ArrayDeque<>();
+        }
+        client.held.add(event);
+        client.heldBytes += event.line.length;
+
+        if (RATE_POLICY == RatePolicy.PAUSE || client.heldBytes > RATE_QUEUE_LIMIT) {
+            pauseReading(client);
+        }
+    }
+
+    static private boolean isCommand(byte[] line, int start, int end) {
+        return line[start] == '/' && end - start > 1 && line[start + 1] != '/';
+    }
+
+    static private boolean admitLine(Client client, byte[] line, int start, int end, long now) {
+        long lines = LINE_LIMIT.charge(client.lineBucket, now, 1);
+        if (lines == RateLimit.REJECT) {
+            linesLimited.increment();
+            return false;
+        }
+
+        long bytes = BYTE_LIMIT.charge(client.byteBucket, now, end - start);
+        if (bytes == RateLimit.REJECT) {
+            bytesLimited.increment();
+            return false;
+        }
+
+        // Chat lines also spend from the room's broadcast budget
+        ChatRoom room = null;
+        if (client.state == ConnectionState.INSIDE && end - start > 1) {
+            if (!isCommand(line, start, end)) {
+                room = chatRooms.get(client.currentRoomIdentifier);
+            } else {
+                int roomEnd = addressedRoomEnd(line, start, end);
+                room = roomEnd < 0 ? null : addressedRoom(client, line, start, roomEnd);
+            }
+        }
+        if (room != null) {
+            long broadcasts = ROOM_LIMIT.charge(room.broadcastBucket, now, 1);
+            if (broadcasts == RateLimit.REJECT) {
+                roomLimited.increment();
+                return false;
+            }
+            room.broadcastBucket = broadcasts;
+        }
+
+        client.lineBucket = lines;
+        client.byteBucket = bytes;
+        return true;
+    }
+
+    // line[start, end) is one line including its '\n'
+    static private void processLine(Client client, byte[] line, int start, int end) throws IOException {
+        // Case that the line only includes '\n'
+        if (end - start < 2) {
+            return;
+        }
+
+        if (!isCommand(line, start, end)) {
+            if (line[start] == '/') {
+                start++; // remove the escaped '/'
+            }
+            ChatRoom room = client.state == ConnectionState.INSIDE ? chatRooms.get(client.currentRoomIdentifier) : null;
+            relayMessage(client, room, line, start, end);
+            return;
+        }
+
+        // Room-addressed chat lines are relayed as bytes too
+        int roomEnd = addressedRoomEnd(line, start, end);
+        if (roomEnd >= 0) {
+            relayMessage(client, addressedRoom(client, line, start, roomEnd), line, roomEnd + 1, end);
+            return;
+        }
+
+        String message;
+        try {
+            message = decoder.decode(ByteBuffer.wrap(line, start, end - start)).toString();
+        } catch (CharacterCodingException e) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+        processMessage(message, client.socketChannel, client.key);
+    }
+
+    // For "/to <room> <text>", the index of the space after <room>; -1 for any other line
+    static private int addressedRoomEnd(byte[] line, int start, int end) {
+        int from = start + TO_COMMAND.length;
+        if (end - start < TO_COMMAND.length || !Arrays.equals(line, start, from, TO_COMMAND, 0, TO_COMMAND.length)) {
+            return -1;
+        }
+        for (int i = from; i < end; i++) {
+            if (line[i] == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The addressed room, or null unless the client is in it
+    static private ChatRoom addressedRoom(Client client, byte[] line, int start, int roomEnd) {
+        int from = start + TO_COMMAND.length;
+        ChatRoom room = chatRooms.get(new String(line, from, roomEnd - from, StandardCharsets.UTF_8));
+        return room != null && client.rooms.contains(room.index) ? room : null;
+    }
+
+    // Relays a chat line to the room without decoding it: the body bytes are
+    // copied once and sent behind the shared prefix and the cached nickname
+    static private void relayMessage(Client sender, ChatRoom room, byte[] line, int start, int end) throws IOException {
+        if (room == null || end - start < 2 || !isValidUtf8(line, start, end)) {
+            sendMessage(sender, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        if (SortedIds.contains(room.muted, sender.id)) {
+            mutedLines.increment();
+            sendMessage(sender, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        byte[] text = Arrays.copyOfRange(line, start, end);
+        if (DEDUP_WINDOW_MS > 0 && text.length >= DEDUP_MIN_BYTES) {
+            if (room.recent == null) {
+                room.recent = new DuplicateFilter(DEDUP_SLOTS);
+            }
+            if (room.recent.repeated(sender.id, text, now(), DEDUP_WINDOW_MS)) {
+                duplicateLines.increment();
+                sendMessage(sender, "ERROR" + System.lineSeparator());
+                return;
+            }
+        }
+
+        ByteBuffer body = ByteBuffer.wrap(text).asReadOnlyBuffer();
+        relayedLines.increment();
+        relayedBytes.add(end - start);
+        broadcastFrame(room.identifier, new ByteBuffer[] { MESSAGE_PREFIX, sender.encodedNick, body }, sender.id);
+
+        if (search != null) {
+            search.add(room.epoch, room.nextSeq - 1, sender.username, text);
+        }
+        if (peers != null) {
+            peers.publish(room.identifier, sender.username, text);
+        }
+    }
+
+    // A chat line another process published: only this process's members of
+    // the room get it, so a room nobody here is in costs a map lookup
+    static private void relayPeerMessage(byte[] frame) {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        int roomLength = in.getShort() & 0xffff;
+        String roomName = new String(frame, in.position(), roomLength, StandardCharsets.UTF_8);
+        in.position(in.position() + roomLength);
+        ChatRoom room = chatRooms.get(roomName);
+        if (room == null) {
+            return;
+        }
+
+        int nickLength = in.getShort() & 0xffff;
+        int nickAt = in.position();
+        byte[] nick = new byte[nickLength + 1];
+        System.arraycopy(frame, nickAt, nick, 0, nickLength);
+        nick[nickLength] = ' ';
+        byte[] text = Arrays.copyOfRange(frame, nickAt + nickLength, frame.length);
+
+        broadcastFrame(room.identifier, new ByteBuffer[] { MESSAGE_PREFIX, ByteBuffer.wrap(nick).asReadOnlyBuffer(),
+                ByteBuffer.wrap(text).asReadOnlyBuffer() }, -1);
+        if (search != null) {
+            search.add(room.epoch, room.nextSeq - 1, new String(frame, nickAt, nickLength, StandardCharsets.UTF_8),
+                    text);
+        }
+    }
+
+    static private boolean isValidUtf8(byte[] b, int start, int end) {
+        int i = start;
+        while (i < end) {
+            int c = b[i] & 0xff;
+            if (c < 0x80) {
+                i++;
+                continue;
+            }
+
+            int extra;
+            int min;
+            if (c >= 0xc2 && c <= 0xdf) {
+                extra = 1;
+                min = 0x80;
+            } else if (c >= 0xe0 && c <= 0xef) {
+                extra = 2;
+                min = 0x800;
+            } else if (c >= 0xf0 && c <= 0xf4) {
+                extra = 3;
+                min = 0x10000;
+            } else {
+                return false;
+            }
+            if (i + extra >= end) {
+                return false;
+            }
+
+            int code = c & (0x3f >> extra);
+            for (int k = 1; k <= extra; k++) {
+                int next = b[i + k] & 0xff;
+                if ((next & 0xc0) != 0x80) {
+                    return false;
+                }
+                code = (code << 6) | (next & 0x3f);
+            }
+            // Reject overlong forms, surrogates and code points past U+10FFFF
+            if (code < min || code > 0x10ffff || (code >= 0xd800 && code <= 0xdfff)) {
+                return false;
+            }
+            i += extra + 1;
+        }
+        return true;
+    }
+
+    static private void pauseReading(Client client) {
+        if (!client.limiterPaused) {
+            client.limiterPaused = true;
+            readsPaused.increment();
+            updateReadInterest(client);
+        }
+    }
+
+    // Reads stay off while the limiter, a full command queue or end of stream says so
+    static void updateReadInterest(Client client) {
+        synchronized (client) {
+            SelectionKey key = client.key;
+            if (key == null || !key.isValid()) {
+                return;
+            }
+
+            boolean reading = !client.limiterPaused && !client.backpressured && !client.eof;
+            try {
+                if (reading) {
+                    key.interestOpsOr(SelectionKey.OP_READ);
+                } else {
+                    key.interestOpsAnd(~SelectionKey.OP_READ);
+                }
+            } catch (CancelledKeyException e) {
+                return;
+            }
+            if (reading && Thread.currentThread() != client.io) {
+                client.io.wakeup();
+            }
+        }
+    }
+
+    static private void startListing(Client client, ChatRoom room, String prefix) {
+        DirectoryListing listing = new DirectoryListing(client, room, prefix);
+        client.listing = listing;
+        if (nextPage(listing)) {
+            listings.add(listing);
+        } else {
+            finishListing(client);
+        }
+    }
+
+    // One page for each listing whose client is keeping up; true if any was sent
+    static private boolean continueListings() {
+        boolean streamed = false;
+
+        for (int i = listings.size(); i > 0; i--) {
+            DirectoryListing listing = listings.poll();
+            Client client = listing.client;
+            if (client.closed) {
+                continue;
+            }
+
+            // A gateway session's output queues at its gateway
+            Client connection = client.gateway != null ? client.gateway : client;
+            long backlog;
+            synchronized (connection) {
+                backlog = connection.outboundBytes;
+            }
+            if (backlog > MAX_OUTBOUND_BYTES / 4) {
+                listings.add(listing);
+                continue;
+            }
+
+            streamed = true;
+            if (nextPage(listing)) {
+                listings.add(listing);
+            } else {
+                finishListing(client);
+            }
+        }
+        return streamed;
+    }
+
+    // Sends the next page, with the closing OK if it is the last; true if more remain
+    static private boolean nextPage(DirectoryListing listing) {
+        StringBuilder page = new StringBuilder();
+        int lines = 0;
+        boolean more = false;
+
+        if (listing.room != null) {
+            NavigableSet<String> names = listing.lastName == null ? listing.room.memberNames
+                    : listing.room.memberNames.tailSet(listing.lastName, false);
+            for (String name : names) {
+                if (lines == DIRECTORY_PAGE) {
+                    more = true;
+                    break;
+                }
+                page.append("MEMBER ").append(name).append(System.lineSeparator());
+                listing.lastName = name;
+                lines++;
+            }
+        } else if (listing.prefix != null) {
+            NavigableMap<String, ChatRoom> rooms = listing.lastName == null
+                    ? directory.byName.tailMap(listing.prefix, true)
+                    : directory.byName.tailMap(listing.lastName, false);
+            for (ChatRoom room : rooms.values()) {
+                if (!room.identifier.startsWith(listing.prefix)) {
+                    break;
+                }
+                if (lines == DIRECTORY_PAGE) {
+                    more = true;
+                    break;
+                }
+                page.append("ROOM ").append(room.identifier).append(' ').append(room.listedPopulation)
+                        .append(System.lineSeparator());
+                listing.lastName = room.identifier;
+                lines++;
+            }
+        } else {
+            NavigableSet<ChatRoom> rooms = directory.byPopulation;
+            if (listing.lastName != null) {
+                ChatRoom cursor = new ChatRoom(listing.lastName);
+                cursor.listedPopulation = listing.lastPopulation;
+                rooms = directory.byPopulation.tailSet(cursor, false);
+            }
+            for (ChatRoom room : rooms) {
+                if (lines == DIRECTORY_PAGE) {
+                    more = true;
+                    break;
+                }
+                page.append("ROOM ").append(room.identifier).append(' ').append(room.listedPopulation)
+                        .append(System.lineSeparator());
+                listing.lastName = room.identifier;
+                listing.lastPopulation = room.listedPopulation;
+                lines++;
+            }
+        }
+
+        // A /who room merged away meanwhile just ends the listing
+        if (!more || (listing.room != null && chatRooms.get(listing.room.identifier) != listing.room)) {
+            page.append("OK").append(System.lineSeparator());
+            more = false;
+        }
+        directoryPages.increment();
+        sendMessage(listing.client, page.toString());
+        return more;
+    }
+
+    // Lines that arrived during the listing run next, like held throttled ones
+    static private void finishListing(Client client) {
+        client.listing = null;
+        if (client.held != null && !client.throttled) {
+            client.throttled = true;
+            throttledClients.add(client);
+        }
+    }
+
+    // Called once per timer tick and whenever the command stage is idle
+    static private void retryThrottledClients() {
+        for (int i = throttledClients.size() - 1; i >= 0; i--) {
+            Client client = throttledClients.get(i);
+            long now = System.nanoTime();
+
+            try {
+                while (!client.closed && client.listing == null && !client.held.isEmpty()) {
+                    byte[] line = client.held.peek().line;
+                    if (!admitLine(client, line, 0, line.length, now)) {
+                        break;
+                    }
+                    client.held.poll();
+                    client.heldBytes -= line.length;
+                    processLine(client, line, 0, line.length);
+                }
+            } catch (IOException ie) {
+                closeClient(client);
+            }
+            if (!client.closed && !client.held.isEmpty()) {
+                continue;
+            }
+
+            // Caught up: resume reading
+            client.throttled = false;
+            client.held = null;
+            client.heldBytes = 0;
+            throttledClients.set(i, throttledClients.get(throttledClients.size() - 1));
+            throttledClients.remove(throttledClients.size() - 1);
+
+            if (client.limiterPaused) {
+                client.limiterPaused = false;
+                updateReadInterest(client);
+            }
+        }
+    }
+
+    static private void processMessage(String message, SocketChannel sc, SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+
+        // Case that the message only includes '\n'
+        if (message.length() < 2) {
+            return;
+        }
+
+        // Remove \n
+        if (message.charAt(message.length() - 1) == '\n') {
+            message = message.substring(0, message.length() - 1);
+        }
+
+        // Only commands get here; chat lines are relayed as bytes by processLine
+        String messageSplit[] = message.split(" ", 2);
+        CommandEvent event = new CommandEvent();
+        event.begin();
+
+        switch (messageSplit[0]) {
+            case "/leave":
+                leave(sc, key, false);
+                break;
+            case "/bye":
+                bye(sc, key);    
+                break;
+            case "/nick":
+                if (messageSplit.length != 2) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                changeNickname(messageSplit[1], sc, key);
+                break;
+            case "/join":
+                if (messageSplit.length < 2) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                join(messageSplit[1], sc, key);
+                break;
+            case "/enter":
+                if (messageSplit.length != 2) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                enter(messageSplit[1], client);
+                break;
+            case "/part":
+                if (messageSplit.length != 2) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                part(messageSplit[1], client);
+                break;
+            case "/priv":
+                if (messageSplit.length < 2) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                sendPrivateMessage(messageSplit[1], sc, key);
+                break;
+            case "/ignore":
+            case "/unignore":
+                if (messageSplit.length != 2) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                ignore(messageSplit[1], client, messageSplit[0].equals("/ignore"));
+                break;
+            case "/mute":
+            case "/unmute":
+                String muteDiv[] = message.split(" ", 3);
+                if (muteDiv.length != 3) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                mute(muteDiv[1], muteDiv[2], client, muteDiv[0].equals("/mute"));
+                break;
+            case "/merge":
+                String messageDiv[] = message.split(" ", 3);
+                if (messageDiv.length != 3) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                mergeRoom(messageDiv[1], sc, key, messageDiv[2]);
+                break;
+            case "/search":
+                // Only a room's members may read its history
+                String searchDiv[] = message.split(" ", 3);
+                ChatRoom searched = searchDiv.length == 3 ? chatRooms.get(searchDiv[1]) : null;
+                if (searched == null || !client.rooms.contains(searched.index) || search == null
+                        || !search.search(client, searched.epoch, searchDiv[2])) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                }
+                break;
+            case "/list":
+                startListing(client, null, messageSplit.length == 2 ? messageSplit[1] : null);
+                break;
+            case "/who":
+                ChatRoom whoRoom = messageSplit.length == 2 ? chatRooms.get(messageSplit[1]) : null;
+                if (whoRoom == null) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                startListing(client, whoRoom, null);
+                break;
+            case "/compress":
+                // A gateway compresses its whole connection, not single sessions
+                if (client.gateway != null) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                enableCompression(messageSplit.length == 2 ? messageSplit[1] : null, key);
+                break;
+            case "/session":
+                // A gateway keeps its users across reconnects itself
+                if (client.gateway != null) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                startSession(client);
+                break;
+            case "/resume":
+                if (messageSplit.length != 2 || client.gateway != null) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                resume(messageSplit[1], client);
+                break;
+            case "/digest":
+                // From now on JOINED/LEFT may list several users: "JOINED a,b,c room".
+                // A digest covers the whole window, so it can name the recipient too.
+                client.presenceDigest = true;
+                sendMessage(client, "OK" + System.lineSeparator());
+                break;
+            case "/gateway":
+                if (messageSplit.length != 2) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                startGateway(messageSplit[1], client);
+                break;
+            case "/pong":
+                // Reading it already refreshed lastActivity
+                break;
+            case "/stats":
+                for (String line : Metrics.snapshot()) {
+                    sendMessage(client, "STATS " + line + System.lineSeparator());
+                }
+                sendMessage(client, "OK" + System.lineSeparator());
+                break;
+            case "/trace":
+                if (messageSplit.length != 2) {
+                    sendMessage(client, "ERROR" + System.lineSeparator());
+                    break;
+                }
+                setTraceRate(messageSplit[1], client);
+                break;
+            default:
+                sendMessage(client, "ERROR" + System.lineSeparator());
+        }
+
+        if (event.shouldCommit()) {
+            event.command = messageSplit[0].length() > 32 ? messageSplit[0].substring(0, 32) : messageSplit[0];
+            event.client = client.id;
+            event.commit();
+        }
+    }
+
+    static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    static private void expireIdleClients(long now) {
+        idleTimers.advance(now, dueClients);
+
+        for (Client client : dueClients) {
+            if (client.closed || !client.socketChannel.isOpen()) {
+                continue;
+            }
+
+            long lastActivity = client.lastActivity;
+            if (now - lastActivity < IDLE_TIMEOUT_MS) {
+                // Heard from it since it was scheduled
+                client.pingSentAt = 0;
+                idleTimers.schedule(client, lastActivity + IDLE_TIMEOUT_MS);
+            } else if (client.pingSentAt <= lastActivity) {
+                sendMessage(client, "PING" + System.lineSeparator());
+                client.pingSentAt = now;
+                pingsSent.increment();
+                idleTimers.schedule(client, now + PING_TIMEOUT_MS);
+            } else {
+                idleEvictions.increment();
+                closeClient(client);
+            }
+        }
+
+        dueClients.clear();
+    }
+
+    static private void closeClient(Client client) {
+        if (client.gateway != null) {
+            closeSession(client);
+            return;
+        }
+        if (client.sessions != null) {
+            for (Client session : new ArrayList<>(client.sessions.values())) {
+                closeSession(session);
+            }
+            gatewayConnections--;
+        }
+
+        SocketChannel sc = client.socketChannel;
+        client.closed = true;
+        connectionEvent("closed", client.id, client.username, client.remoteAddress);
+
+        try {
+            disconnectClient(client.key);
+        } catch (IOException ie) {
+            System.err.println("Error notifying room of " + client.username + ": " + ie);
+        }
+
+        if (LOG_CONNECTIONS) {
+            System.out.println("Closing connection to " + describe(sc));
+        }
+        client.io.requestClose(client);
+    }
+
+    static private void disconnectClient(SelectionKey key) throws IOException {
+        if (key.attachment() != null) {
+
+            Client clientToRemove = (Client) key.attachment();
+            idleTimers.remove(clientToRemove);
+            releaseConnection(clientToRemove);
+
+            if (clientToRemove.state == ConnectionState.INIT) {
+                clients.remove(clientToRemove.username);
+            }
+
+            else if (clientToRemove.state == ConnectionState.OUTSIDE) {
+                detachSession(clientToRemove);
+                clients.remove(clientToRemove.username);
+            }
+
+            else if (clientToRemove.state == ConnectionState.INSIDE) {
+                detachSession(clientToRemove);
+                clients.remove(clientToRemove.username);
+
+                String exitMessage = "LEFT " + clientToRemove.username + System.lineSeparator();
+                while (clientToRemove.rooms.size > 0) {
+                    exitRoom(clientToRemove, lastRoom(clientToRemove), exitMessage);
+                }
+            }
+        }
+    }
+
+    // /gateway <secret>: from now on lines starting with a digit are
+    // "<sessionId> <line>", each run as that session of this connection
+    static private void startGateway(String secret, Client client) {
+        if (GATEWAY_SECRET == null || client.state != ConnectionState.INIT || client.gateway != null
+                || client.sessions != null || !MessageDigest.isEqual(GATEWAY_SECRET.getBytes(StandardCharsets.UTF_8),
+                        secret.getBytes(StandardCharsets.UTF_8))) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        client.sessions = new HashMap<>();
+        gatewayConnections++;
+        sendMessage(client, "OK" + System.lineSeparator());
+    }
+
+    // Runs "<sessionId> <line>" as that session, opening it on its first line
+    static private void gatewayLine(Client gateway, InboundEvent event) throws IOException {
+        byte[] line = event.line;
+        int sessionId = 0;
+        int i = 0;
+        while (i < line.length && line[i] >= '0' && line[i] <= '9' && i < 9) {
+            sessionId = sessionId * 10 + (line[i++] - '0');
+        }
+        if (i == line.length || line[i] != ' ') {
+            sendMessage(gateway, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        Client session = gateway.sessions.get(sessionId);
+        if (session == null) {
+            if (gateway.sessions.size() >= MAX_GATEWAY_SESSIONS) {
+                sendMessage(gateway, sessionId + " ERROR" + System.lineSeparator());
+                return;
+            }
+            session = new Client(null, gateway.socketChannel);
+            session.id = nextClientId.getAndIncrement();
+            session.gateway = gateway;
+            session.sessionId = sessionId;
+            session.sessionPrefix = charset.encode(sessionId + " ").asReadOnlyBuffer();
+            session.key = new SessionKey(session, gateway);
+            session.io = gateway.io;
+            session.lastActivity = gateway.lastActivity;
+            gateway.sessions.put(sessionId, session);
+            gatewaySessions++;
+            connectionEvent("session opened", session.id, null, null);
+        }
+
+        byte[] rest = Arrays.copyOfRange(line, i + 1, line.length);
+        handleLine(session, new InboundEvent(InboundEvent.LINE, session, rest, event.readAt));
+    }
+
+    // A session ends like a connection would, except that nothing is closed
+    static private void closeSession(Client session) {
+        if (session.closed) {
+            return;
+        }
+        session.closed = true;
+        connectionEvent("session closed", session.id, session.username, null);
+
+        try {
+            disconnectClient(session.key);
+        } catch (IOException ie) {
+            System.err.println("Error notifying room of " + session.username + ": " + ie);
+        }
+        session.gateway.sessions.remove(session.sessionId);
+        gatewaySessions--;
+    }
+
+    static private void mergeRoom(String roomName, SocketChannel sc, SelectionKey key, String lastRoom) throws IOException {
+        Client client = (Client) key.attachment();
+
+        // Check if both rooms exist
+        if (!chatRooms.containsKey(roomName) || !chatRooms.containsKey(lastRoom)) {
+            sendMessage(client, "ERROR: One or both rooms do not exist" + System.lineSeparator());
+            return;
+        }
+        // A room cannot be merged into itself
+        if (roomName.equals(lastRoom)) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+        MergeEvent event = new MergeEvent();
+        event.begin();
+        event.fromMembers = chatRooms.get(lastRoom).currentClients.size();
+        event.intoMembers = chatRooms.get(roomName).currentClients.size();
+    
+        // Pending presence changes belong to the rooms as they were
+        flushPresence(chatRooms.get(roomName));
+        flushPresence(chatRooms.get(lastRoom));
+
+        // Check for duplicate usernames between the two rooms
+        for (Client lastTmp : chatRooms.get(lastRoom).currentClients) {
+            for (Client tmp : chatRooms.get(roomName).currentClients) {
+                if (tmp != lastTmp && tmp.username.equals(lastTmp.username)) {
+                    sendMessage(client, "ERROR: Duplicate username - " + tmp.username + System.lineSeparator());
+                    return;
+                }
+            }
+        }
+    
+        // Notify all clients in the original room (roomName) about the merge
+        for (Client tmp : chatRooms.get(roomName).currentClients) {
+            sendMessage(tmp, "MERGE IN PROGRESS - Users from " + lastRoom + " are joining " + roomName + System.lineSeparator());
+        }
+    
+        // Add all clients from lastRoom to roomName; some may be in both already
+        int lastIndex = chatRooms.get(lastRoom).index;
+        List<Client> moved = new ArrayList<>();
+        for (Client lastTmp : chatRooms.get(lastRoom).currentClients) {
+            lastTmp.rooms.remove(lastIndex);
+            if (lastTmp.rooms.contains(chatRooms.get(roomName).index)) {
+                if (lastRoom.equals(lastTmp.currentRoomIdentifier)) {
+                    lastTmp.currentRoomIdentifier = roomName;
+                }
+                continue;
+            }
+            addMember(chatRooms.get(roomName), lastTmp);
+            moved.add(lastTmp);
+            if (lastRoom.equals(lastTmp.currentRoomIdentifier)) {
+                lastTmp.currentRoomIdentifier = roomName;
+            }
+    
+            // Notify the client being moved
+            sendMessage(lastTmp, "You joined " + roomName +  " through a merge request" + System.lineSeparator());
+        }
+    
+        // Notify all clients in the merged room about new members
+        for (Client tmp : chatRooms.get(roomName).currentClients) {
+            for (Client lastTmp : moved) {
+                if (!tmp.username.equals(lastTmp.username)) {
+                    String notification = lastTmp.username + " from " + lastRoom + " joined " + roomName + System.lineSeparator();
+                    sendMessage(tmp, notification);
+                }
+            }
+        }
+    
+        // Clean up the source room; whoever was muted there stays muted
+        ChatRoom removed = chatRooms.remove(lastRoom);
+        ChatRoom target = chatRooms.get(roomName);
+        target.muted = SortedIds.union(target.muted, removed.muted);
+        directory.remove(removed);
+        roomsByIndex.set(removed.index, null);
+        freeRoomIndexes.add(removed.index);
+        if (removed.shards != null) {
+            removed.shards = null;
+            parallelRooms--;
+        }
+    
+        // Notify the initiator of the merge
+        sendMessage(client, "OK MERGE SUCCESSFUL" + System.lineSeparator());
+
+        if (event.shouldCommit()) {
+            event.from = lastRoom;
+            event.into = roomName;
+            event.commit();
+        }
+    }
+    
+
+    static private void broadcastToRoom(String room, String user, String message) {
+        // Encode once, and compress at most once per compression context
+        broadcastFrame(room, new ByteBuffer[] { charset.encode(message) }, -1);
+    }
+
+    // sender is the Client.id behind a chat line, or -1 for server notices
+    static private void broadcastFrame(String room, ByteBuffer[] parts, int sender) {
+        ChatRoom chatRoom = chatRooms.get(room);
+
+        // Earlier membership changes go out before anything said after them
+        flushPresence(chatRoom);
+        fanOut(chatRoom, parts, parts, -1, sender);
+    }
+
+    // Numbers the broadcast, keeps it for /resume and hands every member its form
+    static private void fanOut(ChatRoom chatRoom, ByteBuffer[] parts, ByteBuffer[] legacyParts, long presenceBatch,
+            int sender) {
+        BroadcastEvent event = new BroadcastEvent();
+        event.begin();
+        RoomBroadcast broadcast = new RoomBroadcast();
+        broadcast.parts = parts;
+        broadcast.sender = sender;
+        broadcast.id = broadcastSeq++;
+        broadcast.legacyParts = legacyParts;
+        broadcast.legacyId = parts == legacyParts ? broadcast.id : broadcastSeq++;
+        broadcast.sequencedPrefix = charset.encode("SEQ " + chatRoom.nextSeq + " ");
+        broadcast.sequenced = withPrefix(broadcast.sequencedPrefix, parts);
+        broadcast.sequencedId = broadcastSeq++;
+        if (parts == legacyParts) {
+            broadcast.legacySequenced = broadcast.sequenced;
+            broadcast.legacySequencedId = broadcast.sequencedId;
+        } else {
+            broadcast.legacySequenced = withPrefix(broadcast.sequencedPrefix, legacyParts);
+            broadcast.legacySequencedId = broadcastSeq++;
+        }
+        if (chatRoom.taggedMembers > 0) {
+            broadcast.taggedPrefix = charset.encode("IN " + chatRoom.identifier + " " + chatRoom.nextSeq + " ");
+            broadcast.tagged = withPrefix(broadcast.taggedPrefix, parts);
+            broadcast.taggedId = broadcastSeq++;
+            if (parts == legacyParts) {
+                broadcast.legacyTagged = broadcast.tagged;
+                broadcast.legacyTaggedId = broadcast.taggedId;
+            } else {
+                broadcast.legacyTagged = withPrefix(broadcast.taggedPrefix, legacyParts);
+                broadcast.legacyTaggedId = broadcastSeq++;
+            }
+        }
+        broadcast.presenceBatch = presenceBatch;
+        // Only the line's own broadcast, not presence flushed ahead of it
+        broadcast.trace = sender >= 0 ? tracing : null;
+        retain(chatRoom, broadcast);
+
+        if (chatRoom.shards != null) {
+            stopParallelFanout(chatRoom);
+        }
+        if (chatRoom.shards != null) {
+            parallelBroadcasts.increment();
+            chatRoom.shardsInFlight.addAndGet(chatRoom.shards.length);
+            for (int i = 0; i < chatRoom.shards.length; i++) {
+                Set<Client> shard = chatRoom.shards[i];
+                fanout.execute(i, () -> {
+                    try {
+                        Map<Client, GatewayBatch> batches = new HashMap<>();
+                        for (Client tmp : shard) {
+                            deliverVariant(tmp, broadcast, batches);
+                        }
+                        deliverBatches(batches, broadcast.trace);
+                    } finally {
+                        chatRoom.shardsInFlight.decrementAndGet();
+                    }
+                });
+            }
+        } else {
+            inlineBroadcasts.increment();
+            Map<Client, GatewayBatch> batches = new HashMap<>();
+            for (Client tmp : chatRoom.currentClients) {
+                deliverVariant(tmp, broadcast, batches);
+            }
+            deliverBatches(batches, broadcast.trace);
+        }
+
+        if (event.shouldCommit()) {
+            event.room = chatRoom.identifier;
+            event.members = chatRoom.currentClients.size();
+            for (ByteBuffer part : parts) {
+                event.bytes += part.remaining();
+            }
+            event.parallel = chatRoom.shards != null;
+            event.commit();
+        }
+    }
+
+    // Gateway sessions are only collected into batches; deliverBatches sends them
+    static private void deliverVariant(Client client, RoomBroadcast broadcast, Map<Client, GatewayBatch> batches) {
+        // Nearly every client ignores nobody: one volatile read and a null test
+        int[] ignoring = client.ignoring;
+        if (ignoring != null && SortedIds.contains(ignoring, broadcast.sender)) {
+            ignoredDeliveries.increment();
+            return;
+        }
+
+        boolean digest = client.presenceDigest;
+        ByteBuffer[] rest = null;
+        if (!digest && client.presenceBatch == broadcast.presenceBatch) {
+            // Joined during this batch: only the changes after its own join
+            ByteBuffer tail = broadcast.legacyParts[0].duplicate();
+            tail.position(client.presenceOffset);
+            if (!tail.hasRemaining()) {
+                return;
+            }
+            rest = new ByteBuffer[] { tail };
+        }
+
+        ByteBuffer[] parts;
+        long id;
+        // Broadcasts fanned out just before the client's first /enter still go untagged
+        if (client.multiRoom && broadcast.tagged != null) {
+            if (rest != null) {
+                parts = withPrefix(broadcast.taggedPrefix, rest);
+                id = -1;
+            } else if (digest) {
+                parts = broadcast.tagged;
+                id = broadcast.taggedId;
+            } else {
+                parts = broadcast.legacyTagged;
+                id = broadcast.legacyTaggedId;
+            }
+        } else if (client.session != null) {
+            if (rest != null) {
+                parts = withPrefix(broadcast.sequencedPrefix, rest);
+                id = -1;
+            } else if (digest) {
+                parts = broadcast.sequenced;
+                id = broadcast.sequencedId;
+            } else {
+                parts = broadcast.legacySequenced;
+                id = broadcast.legacySequencedId;
+            }
+        } else if (rest != null) {
+            parts = rest;
+            id = -1;
+        } else if (digest) {
+            parts = broadcast.parts;
+            id = broadcast.id;
+        } else {
+            parts = broadcast.legacyParts;
+            id = broadcast.legacyId;
+        }
 
-                    // What kind of activity is it?
-                    if (key.isAcceptable()) {
+        if (client.gateway != null) {
+            batches.computeIfAbsent(client.gateway, GatewayBatch::new).add(client, parts);
+        } else {
+            deliver(client, parts, id, OutboundFrame.BULK, broadcast.trace);
+        }
+    }
 
-                        // It's an incoming connection. Register this socket with
-                        // the Selector so we can listen for input on it
-                        Socket s = ss.accept();
-                        System.out.println("Got connection from " + s);
+    static private void deliverBatches(Map<Client, GatewayBatch> batches, MessageTrace trace) {
+        for (GatewayBatch batch : batches.values()) {
+            for (int i = 0; i < batch.forms.size(); i++) {
+                StringBuilder recipients = batch.recipients.get(i).append(' ');
+                deliver(batch.gateway, withPrefix(charset.encode(recipients.toString()), batch.forms.get(i)), -1,
+                        OutboundFrame.BULK, trace);
+                gatewayFrames.increment();
+            }
+        }
+    }
 
-                        // Make sure to make it non-blocking, so we can use a selector on it.
-                        SocketChannel sc = s.getChannel();
-                        sc.configureBlocking(false);
+    // Puts the prefix ("SEQ n ", "IN room n ", "TO ids ") in front of every
+    // line; the lines themselves are shared views
+    static private ByteBuffer[] withPrefix(String text, ByteBuffer[] parts) {
+        return withPrefix(charset.encode(text), parts);
+    }
 
-                        // Register it with the selector, for reading and attaching the new client
-                        sc.register(selector, SelectionKey.OP_READ, new Client(null, sc));
+    static private ByteBuffer[] withPrefix(ByteBuffer encoded, ByteBuffer[] parts) {
+        ByteBuffer prefix = encoded.asReadOnlyBuffer();
+        List<ByteBuffer> sequenced = new ArrayList<>(parts.length + 1);
+        boolean lineStart = true;
 
-                    } else if (key.isReadable()) {
+        for (ByteBuffer part : parts) {
+            int from = part.position();
+            for (int i = from; i < part.limit(); i++) {
+                if (lineStart) {
+                    sequenced.add(prefix.duplicate());
+                    lineStart = false;
+                }
+                if (part.get(i) == '\n') {
+                    sequenced.add(view(part, from, i + 1));
+                    from = i + 1;
+                    lineStart = true;
+                }
+            }
+            if (from < part.limit()) {
+                sequenced.add(view(part, from, part.limit()));
+            }
+        }
+        return sequenced.toArray(new ByteBuffer[0]);
+    }
 
-                        SocketChannel sc = null;
+    static private ByteBuffer view(ByteBuffer buffer, int from, int to) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(to);
+        view.position(from);
+        return view;
+    }
 
-                        try {
+    static private void retain(ChatRoom room, RoomBroadcast broadcast) {
+        if (SESSION_RETAIN > 0) {
+            if (room.retained == null) {
+                room.retained = new RoomBroadcast[SESSION_RETAIN];
+            }
+            room.retained[(int) (room.nextSeq % SESSION_RETAIN)] = broadcast;
+        }
+        room.nextSeq++;
+    }
 
-                            // It's incoming data on a connection -- process it
-                            sc = (SocketChannel) key.channel();
-                            boolean ok = handleClientInput(sc, key);
+    // Queues a JOINED/LEFT change; the room hears about it as part of one digest
+    // frame per recipient once the window closes or other traffic goes out
+    static private void announcePresence(ChatRoom room, Client client, String kind, String legacyLine) {
+        presenceEvents.increment();
+        if (PRESENCE_WINDOW_MS <= 0) {
+            ByteBuffer[] parts = { charset.encode(legacyLine) };
+            fanOut(room, parts, parts, -1, -1);
+            return;
+        }
 
-                            // If the connection is dead, remove it from the selector and close it
-                            if (!ok) {
-                                disconnectClient(key);
-                                key.cancel();
+        if (room.presenceLegacy == null) {
+            room.presenceBatch = ++presenceBatches;
+            room.presenceDigest = new StringBuilder();
+            room.presenceLegacy = new ByteArrayOutputStream();
+            room.presenceKind = null;
+            room.presenceDueAt = now() + PRESENCE_WINDOW_MS;
+            if (!room.presenceQueued) {
+                room.presenceQueued = true;
+                presenceRooms.add(room);
+            }
+        }
 
-                                Socket s = null;
-                                try {
-                                    s = sc.socket();
-                                    System.out.println("Closing connection to " + s);
-                                    s.close();
-                                } catch (IOException ie) {
-                                    System.err.println("Error closing socket " + s + ": " + ie);
-                                }
-                            }
+        byte[] line = legacyLine.getBytes(StandardCharsets.UTF_8);
+        room.presenceLegacy.write(line, 0, line.length);
+        if (kind.equals("JOINED")) {
+            client.presenceOffset = room.presenceLegacy.size();
+            client.presenceBatch = room.presenceBatch;
+        }
 
-                        } catch (IOException ie) {
+        if (kind.equals(room.presenceKind)) {
+            room.presenceDigest.append(',').append(client.username);
+        } else {
+            if (room.presenceKind != null) {
+                room.presenceDigest.append(' ').append(room.identifier).append(System.lineSeparator());
+            }
+            room.presenceDigest.append(kind).append(' ').append(client.username);
+            room.presenceKind = kind;
+        }
+    }
 
-                            // On exception, remove this channel from the selector
-                            disconnectClient(key);
-                            key.cancel();
+    static private void flushPresence(ChatRoom room) {
+        if (room == null || room.presenceLegacy == null) {
+            return;
+        }
 
-                            try {
-                                sc.close();
-                            } catch (IOException ie2) {
-                                System.out.println(ie2);
-                            }
+        room.presenceDigest.append(' ').append(room.identifier).append(System.lineSeparator());
+        ByteBuffer[] digest = { charset.encode(room.presenceDigest.toString()) };
+        ByteBuffer[] legacy = { ByteBuffer.wrap(room.presenceLegacy.toByteArray()).asReadOnlyBuffer() };
+        room.presenceDigest = null;
+        room.presenceLegacy = null;
+        room.presenceKind = null;
+        presenceDigests.increment();
 
-                            System.out.println("Closed " + sc);
-                        }
-                    }
-                }
+        fanOut(room, digest, legacy, room.presenceBatch, -1);
+    }
 
-                // We remove the selected keys, because we've dealt with them.
-                keys.clear();
+    // Rooms are queued roughly in due order (a room flushed early by traffic keeps
+    // its place), so a room that is not due yet holds back the rest by under a window
+    static private void flushDuePresence(long now) {
+        while (!presenceRooms.isEmpty()) {
+            ChatRoom room = presenceRooms.peek();
+            if (room.presenceLegacy != null && room.presenceDueAt > now) {
+                return;
             }
-        } catch (IOException ie) {
-            System.err.println(ie);
+
+            presenceRooms.poll();
+            room.presenceQueued = false;
+            flushPresence(room);
         }
     }
 
-    static private boolean handleClientInput(SocketChannel sc, SelectionKey key) throws IOException {
-        // Read the message to the buffer
-        buffer.clear();
-        sc.read(buffer);
-        buffer.flip();
-
-        // If no data, close the connection
-        if (buffer.limit() == 0) {
-            return false;
+    static private void addMember(ChatRoom room, Client client) {
+        if (!room.currentClients.add(client)) {
+            return;
+        }
+        room.memberNames.add(client.username);
+        directory.update(room);
+        client.rooms.add(room.index);
+        if (client.multiRoom) {
+            room.taggedMembers++;
         }
 
-        String message = decoder.decode(buffer).toString();
+        if (room.shards != null) {
+            int worker = fanout.workerFor(client);
+            Set<Client> shard = room.shards[worker];
+            fanout.execute(worker, () -> shard.add(client));
+        } else if (room.currentClients.size() >= PARALLEL_FANOUT_THRESHOLD) {
+            startParallelFanout(room);
+        }
+    }
 
-        Client currentClient = (Client) key.attachment();
+    static private void removeMember(ChatRoom room, Client client) {
+        if (!room.currentClients.remove(client)) {
+            return;
+        }
+        room.memberNames.remove(client.username);
+        directory.update(room);
+        client.rooms.remove(room.index);
+        if (client.multiRoom) {
+            room.taggedMembers--;
+        }
 
-        if (message.charAt(message.length() - 1) != '\n') {
-            currentClient.messageBuffer += message;
-            return true;
+        if (room.shards == null || stopParallelFanout(room)) {
+            return;
         }
 
-        processMessage(currentClient.messageBuffer + message, sc, key);
-        currentClient.messageBuffer = "";
+        int worker = fanout.workerFor(client);
+        Set<Client> shard = room.shards[worker];
+        fanout.execute(worker, () -> shard.remove(client));
+    }
+
+    // Back to inline fan-out once the room is well below the threshold, but only
+    // when none of its shard deliveries is still queued, so inline ones cannot
+    // overtake them; until then it stays parallel and fanOut asks again
+    static private boolean stopParallelFanout(ChatRoom room) {
+        if (room.currentClients.size() >= PARALLEL_FANOUT_THRESHOLD / 2 || room.shardsInFlight.get() > 0) {
+            return false;
+        }
 
+        room.shards = null;
+        parallelRooms--;
         return true;
     }
 
-    static private void processMessage(String message, SocketChannel sc, SelectionKey key) throws IOException {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static private void startParallelFanout(ChatRoom room) {
+        List<Client>[] initial = new List[fanout.size()];
+        for (int i = 0; i < initial.length; i++) {
+            initial[i] = new ArrayList<>();
+        }
+        for (Client member : room.currentClients) {
+            initial[fanout.workerFor(member)].add(member);
+        }
 
-        // Case that the message only includes '\n'
-        if (message.length() < 2) {
-            return;
+        room.shards = new Set[fanout.size()];
+        for (int i = 0; i < initial.length; i++) {
+            Set<Client> shard = new HashSet<>();
+            List<Client> members = initial[i];
+            room.shards[i] = shard;
+            fanout.execute(i, () -> shard.addAll(members));
         }
+        parallelRooms++;
+    }
 
-        // Remove \n
-        if (message.charAt(message.length() - 1) == '\n') {
-            message = message.substring(0, message.length() - 1);
+    // For replies produced off the command stage, such as /search results. The
+    // lock keeps them on the right side of a /compress switch (see enableCompression);
+    // it is that of the connection whose lanes the frame is queued on.
+    static void reply(Client client, ByteBuffer[] frame) {
+        synchronized (client.gateway != null ? client.gateway : client) {
+            deliver(client, frame, -1, OutboundFrame.CONTROL);
         }
+    }
 
-        // Message is a command
-        if (message.charAt(0) == '/' && message.charAt(1) != '/') {
+    // Replies, private messages and other control traffic overtake room broadcasts
+    static private void sendMessage(Client client, String message) {
+        deliver(client, new ByteBuffer[] { charset.encode(message) }, -1, OutboundFrame.CONTROL);
+    }
 
-            String messageSplit[] = message.split(" ", 2);
+    // For replies that must not overtake anything queued before them
+    static private void sendOrdered(Client client, String message) {
+        deliver(client, new ByteBuffer[] { charset.encode(message) }, -1, OutboundFrame.FENCE);
+    }
 
-            switch (messageSplit[0]) {
-                case "/leave":
-                    leave(sc, key, false, false);
-                    break;
-                case "/bye":
-                    bye(sc, key);    
-                    break;
-                case "/nick":
-                    if (messageSplit.length != 2) {
-                        sendMessage(sc, "ERROR" + System.lineSeparator());
-                        break;
-                    }
-                    changeNickname(messageSplit[1], sc, key);
-                    break;
-                case "/join":
-                    if (messageSplit.length < 2) {
-                        sendMessage(sc, "ERROR" + System.lineSeparator());
-                        break;
-                    }
-                    join(messageSplit[1], sc, key);
-                    break;
-                case "/priv":
-                    if (messageSplit.length < 2) {
-                        sendMessage(sc, "ERROR" + System.lineSeparator());
-                        break;
-                    }
-                    sendPrivateMessage(messageSplit[1], sc, key);
-                    break;
-                case "/merge":
-                    String messageDiv[] = message.split(" ", 3);
-                    if (messageDiv.length != 3) {
-                        sendMessage(sc, "ERROR" + System.lineSeparator());
-                        break;
-                    }
-                    mergeRoom(messageDiv[1], sc, key, messageDiv[2]);
-                    break;
-                default:
-                    sendMessage(sc, "ERROR" + System.lineSeparator());
-            }
-        }
+    // The parts are shared with other recipients, so each one gets its own views.
+    // A gateway session's frames go to its gateway, behind its session id.
+    static private void deliver(Client client, ByteBuffer[] parts, long broadcastId, int lane) {
+        deliver(client, parts, broadcastId, lane, null);
+    }
 
-        // Is a normal message; let's send it to the group
-        else {
-            Client sender = (Client) key.attachment();
+    static private void deliver(Client client, ByteBuffer[] parts, long broadcastId, int lane, MessageTrace trace) {
+        if (client.gateway != null) {
+            deliver(client.gateway, withPrefix(client.sessionPrefix, parts), -1, lane, trace);
+            return;
+        }
 
-            if (message.charAt(0) == '/' && message.charAt(1) == '/')
-                message = message.substring(1); // remove the escaped '/'
+        ByteBuffer[] frame;
+        CompressionContext compression;
 
-            if (sender.state == ConnectionState.INSIDE) {
-                String msg = "MESSAGE " + sender.username + " " + message + '\n';
-                broadcastToRoom(sender.currentRoomIdentifier, sender.username, msg);
-            } else
-                sendMessage(sc, "ERROR" + System.lineSeparator());
-        }
+        // Encoded outside the lock; should /compress switch the client over
+        // meanwhile, enqueue turns the plain frame away and it is encoded again
+        do {
+            compression = client.compression;
+            if (compression != null) {
+                ByteBuffer compressed = compression.frame(parts, broadcastId);
+                long raw = 0;
+                for (ByteBuffer part : parts) {
+                    raw += part.remaining();
+                }
+                deliveredRawBytes.add(raw);
+                deliveredWireBytes.add(compressed.remaining());
+                frame = new ByteBuffer[] { compressed.duplicate() };
+            } else {
+                frame = new ByteBuffer[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    frame[i] = parts[i].duplicate();
+                }
+            }
+        } while (!enqueue(client, frame, compression, lane, trace));
     }
 
-    static private void disconnectClient(SelectionKey key) throws IOException {
-        if (key.attachment() != null) {
+    // Queues the frame and asks the client's IoLoop to write it; the command
+    // stage and fan-out workers never block on, or even touch, the socket.
+    // False only if the frame was encoded for another compression setting.
+    static private boolean enqueue(Client client, ByteBuffer[] frame, CompressionContext encodedFor, int lane,
+            MessageTrace trace) {
+        boolean request;
 
-            Client clientToRemove = (Client) key.attachment();
+        synchronized (client) {
+            if (client.compression != encodedFor) {
+                return false;
+            }
 
-            if (clientToRemove.state == ConnectionState.INIT) {
-                clients.remove(clientToRemove.username);
+            long remaining = 0;
+            for (ByteBuffer part : frame) {
+                remaining += part.remaining();
             }
 
-            else if (clientToRemove.state == ConnectionState.INSIDE) {
-                chatRooms.get(clientToRemove.currentRoomIdentifier).currentClients.remove(clientToRemove);
-                clients.remove(clientToRemove.username);
+            // Slow consumer: shed whole frames rather than grow without bound.
+            // Control frames get headroom so room traffic cannot crowd out replies.
+            long limit = lane == OutboundFrame.BULK ? MAX_OUTBOUND_BYTES : 2 * MAX_OUTBOUND_BYTES;
+            if (client.outboundBytes + remaining > limit) {
+                outboundDropped.increment();
+                return true;
+            }
 
-                String exitMessage = "LEFT " + clientToRemove.username + System.lineSeparator();
-                broadcastToRoom(clientToRemove.currentRoomIdentifier, clientToRemove.username, exitMessage);
+            OutboundFrame queued = new OutboundFrame(frame, lane, System.nanoTime(), trace);
+            if (trace != null) {
+                traceEnqueue.record(queued.queuedAt - trace.dispatchedAt);
+            }
+            if (lane == OutboundFrame.BULK) {
+                client.bulkLane.add(queued);
+            } else {
+                if (lane == OutboundFrame.FENCE) {
+                    // Everything queued so far goes out before the fence
+                    client.controlLane.addAll(client.bulkLane);
+                    client.bulkLane.clear();
+                }
+                client.controlLane.add(queued);
+            }
+            client.outboundBytes += remaining;
+
+            request = !client.flushRequested;
+            if (request) {
+                client.flushRequested = true;
+                client.flushRequestedAt = System.nanoTime();
             }
         }
+
+        if (request) {
+            client.io.requestFlush(client);
+        }
+        return true;
     }
 
-    static private void mergeRoom(String roomName, SocketChannel sc, SelectionKey key, String lastRoom) throws IOException {
-        // Check if both rooms exist
-        if (!chatRooms.containsKey(roomName) || !chatRooms.containsKey(lastRoom)) {
-            sendMessage(sc, "ERROR: One or both rooms do not exist" + System.lineSeparator());
+    static private void enableCompression(String encodedDictionary, SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+
+        if (client.compression != null) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
             return;
         }
-    
-        // Check for duplicate usernames between the two rooms
-        for (Client lastTmp : chatRooms.get(lastRoom).currentClients) {
-            for (Client tmp : chatRooms.get(roomName).currentClients) {
-                if (tmp.username.equals(lastTmp.username)) {
-                    sendMessage(sc, "ERROR: Duplicate username - " + tmp.username + System.lineSeparator());
-                    return;
-                }
+
+        byte[] dictionary = CompressionContext.DEFAULT_DICTIONARY;
+        if (encodedDictionary != null) {
+            try {
+                dictionary = Base64.getDecoder().decode(encodedDictionary.trim());
+            } catch (IllegalArgumentException e) {
+                dictionary = null;
             }
-        }
-    
-        // Notify all clients in the original room (roomName) about the merge
-        for (Client tmp : chatRooms.get(roomName).currentClients) {
-            sendMessage(tmp.socketChannel, "MERGE IN PROGRESS - Users from " + lastRoom + " are joining " + roomName + System.lineSeparator());
-        }
-    
-        // Add all clients from lastRoom to roomName
-        for (Client lastTmp : chatRooms.get(lastRoom).currentClients) {
-            chatRooms.get(roomName).currentClients.add(lastTmp);
-            lastTmp.currentRoomIdentifier = roomName;
-    
-            // Notify the client being moved
-            sendMessage(lastTmp.socketChannel, "You joined " + roomName +  " through a merge request" + System.lineSeparator());
-        }
-    
-        // Notify all clients in the merged room about new members
-        for (Client tmp : chatRooms.get(roomName).currentClients) {
-            for (Client lastTmp : chatRooms.get(lastRoom).currentClients) {
-                if (!tmp.username.equals(lastTmp.username)) {
-                    String notification = lastTmp.username + " from " + lastRoom + " joined " + roomName + System.lineSeparator();
-                    sendMessage(tmp.socketChannel, notification);
-                }
+            if (dictionary == null || dictionary.length == 0 || dictionary.length > MAX_DICTIONARY_SIZE) {
+                sendMessage(client, "ERROR" + System.lineSeparator());
+                return;
             }
         }
-    
-        // Clean up the source room
-        chatRooms.remove(lastRoom);
-    
-        // Notify the initiator of the merge
-        sendMessage(sc, "OK MERGE SUCCESSFUL" + System.lineSeparator());
-    }
-    
 
-    static private void broadcastToRoom(String room, String user, String message) throws IOException {
-        for (Client tmp : chatRooms.get(room).currentClients) {
-            sendMessage(clients.get(tmp.username).socketChannel, message);
+        // Clients with the same dictionary share one context, so broadcasts to them compress once
+        final byte[] dict = dictionary;
+        CompressionContext context = compressionContexts.computeIfAbsent(ByteBuffer.wrap(dict),
+                k -> new CompressionContext(dict));
+
+        // The reply is still plain text; everything after it is compressed
+        synchronized (client) {
+            sendOrdered(client, "OK" + System.lineSeparator());
+            client.compression = context;
         }
     }
 
-    static private void sendMessage(SocketChannel sc, String message) throws IOException {
-        CharBuffer cb = CharBuffer.wrap(message.toCharArray());
-        ByteBuffer bb = charset.encode(cb);
-        sc.write(bb);
+    // ',' separates the nicknames of a digest: "JOINED a,b,c room"
+    static boolean validNickname(String nickname) {
+        return nickname.indexOf(',') < 0;
     }
 
     static private void changeNickname(String newUsername, SocketChannel sc, SelectionKey key) throws IOException {
         Client currentClient = (Client) key.attachment();
         
-        // Username already used
-        if (clients.containsKey(newUsername)) {
-            sendMessage(sc, "ERROR" + System.lineSeparator());
+        // Username already used, kept for a session that may resume, or not
+        // one a presence digest could list
+        if (!validNickname(newUsername) || clients.containsKey(newUsername)
+                || reservedNicks.containsKey(newUsername)) {
+            sendMessage(currentClient, "ERROR" + System.lineSeparator());
             return;
         }
 
@@ -347,17 +4303,25 @@ public class ChatServer {
 
         clients.remove(oldUsername);
         currentClient.username = newUsername;
+        currentClient.encodedNick = ByteBuffer.wrap(
+                (newUsername + " ").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
         clients.put(newUsername, currentClient);
 
         // Notify the others in the same room
         if (currentClient.state == ConnectionState.INSIDE) {
             String message = "NEWNICK " + oldUsername + " " + newUsername + System.lineSeparator();
-            broadcastToRoom(currentClient.currentRoomIdentifier, currentClient.username, message);
+            for (int i = 0; i < currentClient.rooms.size; i++) {
+                ChatRoom room = roomsByIndex.get(currentClient.rooms.indexes[i]);
+                room.memberNames.remove(oldUsername);
+                room.memberNames.add(newUsername);
+                broadcastToRoom(room.identifier, currentClient.username, message);
+            }
         } else {
             currentClient.state = ConnectionState.OUTSIDE;
         }
 
-        sendMessage(sc, "OK" + System.lineSeparator());
+        sendMessage(currentClient, "OK" + System.lineSeparator());
+        deliverMailbox(currentClient);
     }
 
     static private void join(String roomName, SocketChannel sc, SelectionKey key) throws IOException {
@@ -365,69 +4329,171 @@ public class ChatServer {
 
         // Not chosen a username 
         if (clientWantJoin.state == ConnectionState.INIT) {
-            sendMessage(sc, "ERROR" + System.lineSeparator());
+            sendMessage(clientWantJoin, "ERROR" + System.lineSeparator());
             return;
         }
 
-        // Create the room if it doesn't exist
-        if (!chatRooms.containsKey(roomName)) {
-            chatRooms.put(roomName, new ChatRoom(roomName));
+        //leave the current rooms before joining the new one
+        if (clientWantJoin.state == ConnectionState.INSIDE) {
+            leave(sc, key, false);
         }
 
-        if (clientWantJoin.state == ConnectionState.OUTSIDE) {
-            String message = "JOINED " + clientWantJoin.username + " " + roomName + System.lineSeparator();
-            broadcastToRoom(roomName, clientWantJoin.username, message);
+        enterRoom(clientWantJoin, openRoom(roomName));
+        sendMessage(clientWantJoin, "OK" + System.lineSeparator());
+    }
 
-            chatRooms.get(roomName).currentClients.add(clientWantJoin);
-            clientWantJoin.currentRoomIdentifier = roomName;
-            clientWantJoin.state = ConnectionState.INSIDE;
-        
-        } else if (clientWantJoin.state == ConnectionState.INSIDE) {
-            //leave the current room before joining the new one
-            leave(sc, key, true, false);
+    // Joins one more room, or makes it the room plain chat lines go to if the
+    // client is in it already
+    static private void enter(String roomName, Client client) {
+        if (client.state == ConnectionState.INIT) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        if (!client.multiRoom) {
+            // From now on room traffic says which room it came from
+            client.multiRoom = true;
+            for (int i = 0; i < client.rooms.size; i++) {
+                roomsByIndex.get(client.rooms.indexes[i]).taggedMembers++;
+            }
+        }
 
-            String message = "JOINED " + clientWantJoin.username + " " + roomName + System.lineSeparator();
-            broadcastToRoom(roomName, clientWantJoin.username, message);
+        ChatRoom room = openRoom(roomName);
+        if (client.rooms.contains(room.index)) {
+            client.currentRoomIdentifier = room.identifier;
+        } else {
+            enterRoom(client, room);
+        }
+        sendMessage(client, "OK" + System.lineSeparator());
+    }
 
-            chatRooms.get(roomName).currentClients.add(clientWantJoin);
-            clientWantJoin.currentRoomIdentifier = roomName;
+    // Leaves one of the client's rooms
+    static private void part(String roomName, Client client) {
+        ChatRoom room = chatRooms.get(roomName);
+        if (room == null || !client.rooms.contains(room.index)) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
         }
 
-        sendMessage(sc, "OK" + System.lineSeparator());
+        exitRoom(client, room, "LEFT " + client.username + " " + room.identifier + System.lineSeparator());
+        sendMessage(client, "OK" + System.lineSeparator());
     }
 
-    static private void leave(SocketChannel sc, SelectionKey key, boolean leavingToNewRoom, boolean bye)
-            throws IOException {
+    // /ignore and /unignore: by connection, so whoever takes the nickname
+    // after that connection is gone is heard again
+    static private void ignore(String nickname, Client client, boolean on) {
+        Client other = clients.get(nickname);
+        int[] ignoring = client.ignoring;
+        if (client.state == ConnectionState.INIT || other == null || other == client
+                || (on && ignoring != null && ignoring.length >= MAX_IGNORED)) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        client.ignoring = on ? SortedIds.with(ignoring, other.id) : SortedIds.without(ignoring, other.id);
+        sendMessage(client, "OK" + System.lineSeparator());
+    }
+
+    // /mute and /unmute: a moderator silences a connection in one room
+    static private void mute(String roomName, String nickname, Client client, boolean on) {
+        ChatRoom room = chatRooms.get(roomName);
+        Client other = clients.get(nickname);
+        if (client.state == ConnectionState.INIT || !MODERATORS.contains(client.username) || room == null
+                || other == null) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        room.muted = on ? SortedIds.with(room.muted, other.id) : SortedIds.without(room.muted, other.id);
+        sendMessage(client, "OK" + System.lineSeparator());
+    }
+
+    // /trace <n>: a moderator follows 1 in n lines from now on, 0 for none
+    static private void setTraceRate(String every, Client client) {
+        int n;
+        try {
+            n = Integer.parseInt(every.trim());
+        } catch (NumberFormatException e) {
+            n = -1;
+        }
+        if (client.state == ConnectionState.INIT || !MODERATORS.contains(client.username) || n < 0) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        traceEvery = n;
+        sendMessage(client, "OK" + System.lineSeparator());
+    }
+
+    static private void leave(SocketChannel sc, SelectionKey key, boolean bye) throws IOException {
         Client clientWantLeave = (Client) key.attachment();
 
         if (clientWantLeave.state != ConnectionState.INSIDE) {
-            sendMessage(sc, "ERROR" + System.lineSeparator());
+            sendMessage(clientWantLeave, "ERROR" + System.lineSeparator());
             return;
         }
 
-        String roomIdentifier = clientWantLeave.currentRoomIdentifier;
-        chatRooms.get(roomIdentifier).currentClients.remove(clientWantLeave);
+        while (clientWantLeave.rooms.size > 0) {
+            ChatRoom room = lastRoom(clientWantLeave);
+            String message = "LEFT " + clientWantLeave.username + " " + room.identifier + System.lineSeparator();
+            exitRoom(clientWantLeave, room, message);
+        }
 
-        String message = "LEFT " + clientWantLeave.username + " " + roomIdentifier + System.lineSeparator();
-        broadcastToRoom(roomIdentifier, clientWantLeave.username, message);
+        if (!bye) {
+            sendMessage(clientWantLeave, "OK" + System.lineSeparator());
+        }
+    }
 
-        if (!leavingToNewRoom) {
-            clientWantLeave.state = ConnectionState.OUTSIDE;
-            clientWantLeave.currentRoomIdentifier = null;
+    static private ChatRoom openRoom(String roomName) {
+        ChatRoom room = chatRooms.get(roomName);
+        if (room == null) {
+            room = new ChatRoom(roomName);
+            Integer free = freeRoomIndexes.poll();
+            if (free != null) {
+                room.index = free;
+                roomsByIndex.set(free, room);
+            } else {
+                room.index = roomsByIndex.size();
+                roomsByIndex.add(room);
+            }
+            chatRooms.put(roomName, room);
         }
+        return room;
+    }
 
-        if (!bye) {
-            sendMessage(sc, "OK" + System.lineSeparator());
+    static private void enterRoom(Client client, ChatRoom room) {
+        String message = "JOINED " + client.username + " " + room.identifier + System.lineSeparator();
+        announcePresence(room, client, "JOINED", message);
+
+        addMember(room, client);
+        client.currentRoomIdentifier = room.identifier;
+        client.state = ConnectionState.INSIDE;
+    }
+
+    // Plain chat lines move on to another of the client's rooms, if any
+    static private void exitRoom(Client client, ChatRoom room, String message) {
+        removeMember(room, client);
+        announcePresence(room, client, "LEFT", message);
+
+        if (room.identifier.equals(client.currentRoomIdentifier)) {
+            client.currentRoomIdentifier = client.rooms.size > 0 ? lastRoom(client).identifier : null;
+        }
+        if (client.rooms.size == 0) {
+            client.state = ConnectionState.OUTSIDE;
         }
     }
 
+    static private ChatRoom lastRoom(Client client) {
+        return roomsByIndex.get(client.rooms.indexes[client.rooms.size - 1]);
+    }
+
     static private void sendPrivateMessage(String message, SocketChannel sc, SelectionKey key) throws IOException {
 
         // Verify sender is valid
         Client sender = (Client) key.attachment();
 
         if (sender.state == ConnectionState.INIT) {
-            sendMessage(sc, "ERROR" + System.lineSeparator());
+            sendMessage(sender, "ERROR" + System.lineSeparator());
             return;
         }
 
@@ -435,33 +4501,227 @@ public class ChatServer {
         String messageSplit[] = message.split(" ", 2);
 
         if (messageSplit.length != 2) {
-            sendMessage(sc, "ERROR" + System.lineSeparator());
+            sendMessage(sender, "ERROR" + System.lineSeparator());
             return;
         }
 
         String messageToSend = "PRIVATE " + sender.username + " " + messageSplit[1] + '\n';
 
         if (clients.containsKey(messageSplit[0])) {
-            sendMessage(clients.get(messageSplit[0]).socketChannel, messageToSend);
+            // An ignoring recipient drops it unseen, like an ignored room line
+            Client recipient = clients.get(messageSplit[0]);
+            if (!SortedIds.contains(recipient.ignoring, sender.id)) {
+                sendMessage(recipient, messageToSend);
+            } else {
+                ignoredDeliveries.increment();
+            }
+        } else if (mailboxes != null && mailboxes.store(messageSplit[0], messageToSend.getBytes(StandardCharsets.UTF_8))) {
+            // Offline: delivered when the nickname is next taken
+            mailboxStored.increment();
         } else {
-            sendMessage(sc, "ERROR" + System.lineSeparator());
+            if (mailboxes != null) {
+                mailboxRejected.increment();
+            }
+            sendMessage(sender, "ERROR" + System.lineSeparator());
+        }
+    }
+
+    // Sends everything waiting for the client's nickname in one frame
+    static private void deliverMailbox(Client client) {
+        if (mailboxes == null) {
+            return;
+        }
+
+        List<ByteBuffer> lines;
+        try {
+            lines = mailboxes.take(client.username);
+        } catch (IOException ie) {
+            System.err.println("Error reading mailbox of " + client.username + ": " + ie);
+            return;
+        }
+        if (!lines.isEmpty()) {
+            mailboxDelivered.add(lines.size());
+            deliver(client, lines.toArray(new ByteBuffer[0]), -1, OutboundFrame.CONTROL);
+        }
+    }
+
+    static private void expireMailboxes() {
+        if (mailboxes == null) {
+            return;
+        }
+
+        try {
+            mailboxes.expire(System.currentTimeMillis());
+        } catch (IOException ie) {
+            System.err.println("Error expiring mailboxes: " + ie);
+        }
+    }
+
+    static private void startSession(Client client) {
+        if (client.state == ConnectionState.INIT) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        if (client.session == null) {
+            byte[] random = new byte[16];
+            tokens.nextBytes(random);
+            StringBuilder token = new StringBuilder();
+            for (byte b : random) {
+                token.append(String.format("%02x", b));
+            }
+            client.session = new Session(token.toString(), client);
+            sessions.put(client.session.token, client.session);
+        }
+        sendMessage(client, "SESSION " + client.session.token + System.lineSeparator());
+    }
+
+    // The connection is gone; keep the nickname and room for a while
+    static private void detachSession(Client client) {
+        Session session = client.session;
+        if (session == null) {
+            return;
+        }
+
+        session.client = null;
+        session.username = client.username;
+        session.room = client.state == ConnectionState.INSIDE ? client.currentRoomIdentifier : null;
+        session.expiresAt = now() + SESSION_TTL_MS;
+        reservedNicks.put(session.username, session);
+        if (!session.queued) {
+            session.queued = true;
+            detachedSessions.add(session);
+        }
+    }
+
+    // Sessions detach in expiry order; one that resumed and detached again keeps its old place
+    static private void expireSessions(long now) {
+        for (int n = detachedSessions.size(); n > 0; n--) {
+            Session session = detachedSessions.peek();
+            if (session.client == null && session.expiresAt > now) {
+                return;
+            }
+
+            detachedSessions.poll();
+            session.queued = false;
+            if (session.client == null && sessions.remove(session.token) != null) {
+                reservedNicks.remove(session.username);
+                sessionsExpired.increment();
+            }
+        }
+    }
+
+    // "/resume <token> <lastSeq>": takes the session's nickname and room back and
+    // replays the room broadcasts after lastSeq, all in one frame
+    static private void resume(String arguments, Client client) {
+        String[] split = arguments.split(" ");
+        Session session = split.length == 2 ? sessions.get(split[0]) : null;
+        long lastSeen;
+        try {
+            lastSeen = split.length == 2 ? Long.parseLong(split[1]) : -1;
+        } catch (NumberFormatException e) {
+            lastSeen = -1;
+        }
+
+        if (client.state != ConnectionState.INIT || session == null || lastSeen < 0) {
+            sendMessage(client, "ERROR" + System.lineSeparator());
+            return;
+        }
+
+        // The old connection may not have been noticed dead yet
+        if (session.client != null) {
+            closeClient(session.client);
+        }
+
+        reservedNicks.remove(session.username);
+        session.client = client;
+        client.session = session;
+        client.username = session.username;
+        client.encodedNick = ByteBuffer.wrap(
+                (session.username + " ").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        client.state = ConnectionState.OUTSIDE;
+        clients.put(session.username, client);
+
+        List<ByteBuffer> batch = new ArrayList<>();
+        ChatRoom room = session.room == null ? null : chatRooms.get(session.room);
+        if (room != null) {
+            // Replay what is still retained, and say what is not
+            long first = Math.max(lastSeen + 1, room.nextSeq - (room.retained == null ? 0 : SESSION_RETAIN));
+            if (first > lastSeen + 1 && lastSeen + 1 < room.nextSeq) {
+                replayGaps.increment();
+                batch.add(charset.encode("GAP " + (lastSeen + 1) + " " + (first - 1) + System.lineSeparator()));
+            }
+            for (long seq = first; seq < room.nextSeq; seq++) {
+                RoomBroadcast retained = room.retained[(int) (seq % SESSION_RETAIN)];
+                for (ByteBuffer part : client.presenceDigest ? retained.sequenced : retained.legacySequenced) {
+                    batch.add(part.duplicate());
+                }
+                replayedBroadcasts.increment();
+            }
+
+            enterRoom(client, room);
         }
+
+        sessionsResumed.increment();
+        batch.add(charset.encode("RESUMED " + client.username
+                + (room != null ? " " + room.identifier : "") + System.lineSeparator()));
+        deliver(client, batch.toArray(new ByteBuffer[0]), -1, OutboundFrame.FENCE);
+        deliverMailbox(client);
     }
 
     static private void bye(SocketChannel sc, SelectionKey key) throws IOException {
         Client clientLeaving = (Client) key.attachment();
 
         if (clientLeaving.state == ConnectionState.INSIDE) {
-            leave(sc, key, false, true);
+            leave(sc, key, true);
         }
 
         if (clients.containsKey(clientLeaving.username)) {
             clients.remove(clientLeaving.username);
         }
 
-        sendMessage(sc, "BYE" + System.lineSeparator());
-        System.out.println("Closing connection to " + sc.socket());
-        sc.close();
+        if (clientLeaving.gateway != null) {
+            // Only the session ends; its gateway stays connected
+            sendOrdered(clientLeaving, "BYE" + System.lineSeparator());
+            closeSession(clientLeaving);
+            return;
+        }
+        if (clientLeaving.sessions != null) {
+            // A gateway leaving takes its sessions with it, as in closeClient
+            for (Client session : new ArrayList<>(clientLeaving.sessions.values())) {
+                closeSession(session);
+            }
+            gatewayConnections--;
+        }
+
+        idleTimers.remove(clientLeaving);
+        releaseConnection(clientLeaving);
+        if (clientLeaving.session != null) {
+            // Leaving on purpose: nothing to resume
+            sessions.remove(clientLeaving.session.token);
+            clientLeaving.session = null;
+        }
+
+        if (LOG_CONNECTIONS) {
+            System.out.println("Closing connection to " + describe(sc));
+        }
+
+        // The IoLoop closes the socket once BYE and everything before it is written
+        boolean request;
+        clientLeaving.closed = true;
+        connectionEvent("bye", clientLeaving.id, clientLeaving.username, clientLeaving.remoteAddress);
+        synchronized (clientLeaving) {
+            clientLeaving.closeAfterFlush = true;
+            sendOrdered(clientLeaving, "BYE" + System.lineSeparator());
+            request = !clientLeaving.flushRequested;
+            if (request) {
+                clientLeaving.flushRequested = true;
+                clientLeaving.flushRequestedAt = System.nanoTime();
+            }
+        }
+        if (request) {
+            clientLeaving.io.requestFlush(clientLeaving);
+        }
     }
 
 }
@@ -0,0 +1,20 @@
+// Checks that a nickname cannot make a presence digest ambiguous.
+//
+//   javac ChatServer.java NicknameTest.java && java NicknameTest
+public class NicknameTest {
+
+    public static void main(String[] args) {
+        check(ChatServer.validNickname("ana"), "a plain nickname is accepted");
+        check(ChatServer.validNickname("ana-maria_2"), "punctuation other than ',' is accepted");
+        check(!ChatServer.validNickname("a,b"), "a ',' inside is rejected");
+        check(!ChatServer.validNickname(",ana"), "a leading ',' is rejected");
+        check(!ChatServer.validNickname("ana,"), "a trailing ',' is rejected");
+        System.out.println("NicknameTest: ok");
+    }
+
+    static private void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
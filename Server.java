@@ -2,23 +2,35 @@ import java.io.*;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
-import java.nio.charset.*;
 import java.util.*;
 
+// Baseline for ChatServer: the same single-selector NIO loop with no chat
+// logic and no printing per connection, so ChatBench can tell what the chat
+// logic costs over raw NIO.
+//
+//   java Server <port> [echo|sink]
+//
+// echo: every byte read goes straight back (a line in, the same line out)
+// sink: every byte read is dropped
 public class Server
 {
   // A pre-allocated buffer for the received data
   static private final ByteBuffer buffer = ByteBuffer.allocate( 16384 );
 
-  // Decoder for incoming text -- assume UTF-8
-  static private final Charset charset = Charset.forName("UTF8");
-  static private final CharsetDecoder decoder = charset.newDecoder();
+  static private boolean echo = true;
 
 
   static public void main( String args[] ) throws Exception {
-    // Parse port from command line
+    // Parse port and mode from command line
     int port = Integer.parseInt( args[0] );
-    
+    if (args.length > 1) {
+      if (!args[1].equals( "echo" ) && !args[1].equals( "sink" )) {
+        System.err.println( "usage: java Server <port> [echo|sink]" );
+        return;
+      }
+      echo = args[1].equals( "echo" );
+    }
+
     try {
       // Instead of creating a ServerSocket, create a ServerSocketChannel
       ServerSocketChannel ssc = ServerSocketChannel.open();
@@ -30,7 +42,7 @@ public class Server
       // listening port
       ServerSocket ss = ssc.socket();
       InetSocketAddress isa = new InetSocketAddress( port );
-      ss.bind( isa );
+      ss.bind( isa, 1024 );
 
       // Create a new Selector for selecting
       Selector selector = Selector.open();
@@ -38,7 +50,7 @@ public class Server
       // Register the ServerSocketChannel, so we can listen for incoming
       // connections
       ssc.register( selector, SelectionKey.OP_ACCEPT );
-      System.out.println( "Listening on port "+port );
+      System.out.println( "Listening on port "+port+" ("+(echo ? "echo" : "sink")+")" );
 
       while (true) {
         // See if we've had any activity -- either an incoming connection,
@@ -58,45 +70,37 @@ public class Server
           // Get a key representing one of bits of I/O activity
           SelectionKey key = it.next();
 
+          if (!key.isValid()) {
+            continue;
+          }
+
           // What kind of activity is it?
           if (key.isAcceptable()) {
 
-            // It's an incoming connection.  Register this socket with
-            // the Selector so we can listen for input on it
-            Socket s = ss.accept();
-            System.out.println( "Got connection from "+s );
-
-            // Make sure to make it non-blocking, so we can use a selector
-            // on it.
-            SocketChannel sc = s.getChannel();
-            sc.configureBlocking( false );
-
-            // Register it with the selector, for reading
-            sc.register( selector, SelectionKey.OP_READ );
+            // Incoming connections: register them with the Selector so we
+            // can listen for input on them
+            SocketChannel sc;
+            while ((sc = ssc.accept()) != null) {
+              sc.configureBlocking( false );
+              sc.setOption( StandardSocketOptions.TCP_NODELAY, true );
+              sc.register( selector, SelectionKey.OP_READ );
+            }
 
-          } else if (key.isReadable()) {
+          } else {
 
-            SocketChannel sc = null;
+            SocketChannel sc = (SocketChannel)key.channel();
 
             try {
 
-              // It's incoming data on a connection -- process it
-              sc = (SocketChannel)key.channel();
-              boolean ok = processInput( sc );
+              // It's incoming data on a connection, or room to write the
+              // rest of an echo -- process it
+              boolean ok = key.isWritable() ? processOutput( sc, key ) : processInput( sc, key );
 
               // If the connection is dead, remove it from the selector
               // and close it
               if (!ok) {
                 key.cancel();
-
-                Socket s = null;
-                try {
-                  s = sc.socket();
-                  System.out.println( "Closing connection to "+s );
-                  s.close();
-                } catch( IOException ie ) {
-                  System.err.println( "Error closing socket "+s+": "+ie );
-                }
+                sc.close();
               }
 
             } catch( IOException ie ) {
@@ -107,8 +111,6 @@ public class Server
               try {
                 sc.close();
               } catch( IOException ie2 ) { System.out.println( ie2 ); }
-
-              System.out.println( "Closed "+sc );
             }
           }
         }
@@ -122,32 +124,43 @@ public class Server
   }
 
 
-  // Just read the message from the socket and send it to stdout
-  static private boolean processInput( SocketChannel sc ) throws IOException {
+  // Read what is there; in echo mode write it back, and if the socket does
+  // not take all of it stop reading until it does
+  static private boolean processInput( SocketChannel sc, SelectionKey key ) throws IOException {
     // Read the message to the buffer
     buffer.clear();
-    sc.read( buffer );
-    buffer.flip();
+    int read = sc.read( buffer );
 
     // If no data, close the connection
-    if (buffer.limit()==0) {
+    if (read < 0) {
       return false;
     }
+    if (!echo || read == 0) {
+      return true;
+    }
 
-    // Decode and print the message to stdout
-    String message = decoder.decode(buffer).toString();
-    System.out.print( message );
+    buffer.flip();
+    sc.write( buffer );
+    if (buffer.hasRemaining()) {
+      ByteBuffer pending = ByteBuffer.allocate( buffer.remaining() );
+      pending.put( buffer ).flip();
+      key.attach( pending );
+      key.interestOps( SelectionKey.OP_WRITE );
+    }
 
     return true;
   }
-}
 
 
+  // Finish a partly written echo, then go back to reading
+  static private boolean processOutput( SocketChannel sc, SelectionKey key ) throws IOException {
+    ByteBuffer pending = (ByteBuffer)key.attachment();
+    sc.write( pending );
+    if (!pending.hasRemaining()) {
+      key.attach( null );
+      key.interestOps( SelectionKey.OP_READ );
+    }
 
-// Client(String username, SocketChannel socketChannel) {
-//   this.username = username;
-//   this.socketChannel = socketChannel;
-//   this.messageBuffer = "";
-//   this.state = ConnectionState.INIT;
-//   this.currentRoomIdentifier = null;
-// }
\ No newline at end of file
+    return true;
+  }
+}
@@ -3,6 +3,7 @@
 #USAGE 
 #  ./run.sh c  -> clean
 # ./run.sh run <n> -> run server and n clients
+# ./run.sh bench <args> -> run ChatBench against a running server
 
 if [ "$1" = "c" ]; then 
 	rm -rf *.class
@@ -10,6 +11,13 @@ if [ "$1" = "c" ]; then
 fi
 
 rm -rf *.class && javac -d . ChatClient.java  && javac -d . ChatServer.java
+
+if [ "$1" = "bench" ]; then
+	javac -d . ChatBench.java
+	shift
+	java ChatBench "$@"
+	exit
+fi
  
 if [ "$#" -eq 2 ]; then
 	if [ "$1" = "run" ]; then 